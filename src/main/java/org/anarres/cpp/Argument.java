@@ -17,26 +17,42 @@
 package org.anarres.cpp;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Iterator;
 import java.util.List;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
 /**
  * A macro argument.
  *
  * This encapsulates a raw and preprocessed token stream.
+ * The raw tokens are a range of the Preprocessor's TokenBuffer.
  */
-/* pp */ class Argument extends ArrayList<Token> {
+/* pp */ class Argument extends AbstractList<Token> {
 
+    private final TokenBuffer buffer;
+    private final int start;
+    private final int end;
     private List<Token> expansion;
 
-    public Argument() {
+    public Argument(@Nonnull TokenBuffer buffer, @Nonnegative int start, @Nonnegative int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
         this.expansion = null;
     }
 
-    public void addToken(@Nonnull Token tok) {
-        add(tok);
+    @Override
+    public Token get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        return buffer.get(start + index);
+    }
+
+    @Override
+    public int size() {
+        return end - start;
     }
 
     /* pp */ void expand(@Nonnull Preprocessor p)
@@ -0,0 +1,168 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A virtual filesystem which caches directory listings.
+ *
+ * Each directory is listed once, and a file which does not appear
+ * in the listing is known not to exist without any further system
+ * call. Files which do appear are still checked with the wrapped
+ * filesystem. This removes the failed stats of include path
+ * searches, which are costly on network filesystems.
+ *
+ * Listings are not refreshed. If the directories change, call
+ * {@link #invalidate()}. This class is thread-safe, so one
+ * instance may be shared between Preprocessors.
+ */
+public class CachingFileSystem implements VirtualFileSystem {
+
+    private final VirtualFileSystem fs;
+    private final File root;
+    /* Lower-cased names, so that case-insensitive filesystems work. */
+    private final ConcurrentMap<String, Set<String>> listings = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Wraps the given filesystem.
+     *
+     * @param fs the filesystem to wrap.
+     * @param root the real directory against which the paths of the
+     *	wrapped filesystem are resolved, or null if they are real.
+     */
+    public CachingFileSystem(@Nonnull VirtualFileSystem fs, @CheckForNull File root) {
+        this.fs = fs;
+        this.root = root;
+    }
+
+    public CachingFileSystem(@Nonnull JavaFileSystem fs) {
+        this(fs, null);
+    }
+
+    public CachingFileSystem(@Nonnull ChrootFileSystem fs) {
+        this(fs, fs.getRoot());
+    }
+
+    /**
+     * Discards all cached directory listings.
+     */
+    public void invalidate() {
+        listings.clear();
+    }
+
+    /**
+     * Discards the cached listing of the given directory.
+     */
+    public void invalidate(@Nonnull String dir) {
+        listings.remove(dir);
+    }
+
+    @Nonnull
+    private Set<String> getListing(@Nonnull String dir) {
+        Set<String> listing = listings.get(dir);
+        if (listing == null) {
+            File real = (root == null) ? new File(dir) : new File(root, dir);
+            String[] names = real.list();
+            if (names == null) {
+                listing = Collections.emptySet();
+            } else {
+                listing = new HashSet<String>(names.length * 2);
+                for (String name : names)
+                    listing.add(name.toLowerCase(Locale.ENGLISH));
+            }
+            listings.put(dir, listing);
+        }
+        return listing;
+    }
+
+    /* pp */ boolean isListed(@Nonnull String path) {
+        File file = new File(path);
+        String dir = file.getParent();
+        if (dir == null)
+            return true;
+        return getListing(dir).contains(file.getName().toLowerCase(Locale.ENGLISH));
+    }
+
+    @Override
+    public VirtualFile getFile(String path) {
+        return new CachingFile(fs.getFile(path));
+    }
+
+    @Override
+    public VirtualFile getFile(String dir, String name) {
+        return new CachingFile(fs.getFile(dir, name));
+    }
+
+    private class CachingFile implements VirtualFile {
+
+        private final VirtualFile file;
+
+        public CachingFile(@Nonnull VirtualFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean isFile() {
+            if (!isListed(file.getPath()))
+                return false;
+            return file.isFile();
+        }
+
+        @Override
+        public String getPath() {
+            return file.getPath();
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public VirtualFile getParentFile() {
+            VirtualFile parent = file.getParentFile();
+            if (parent == null)
+                return null;
+            return new CachingFile(parent);
+        }
+
+        @Override
+        public VirtualFile getChildFile(String name) {
+            return new CachingFile(file.getChildFile(name));
+        }
+
+        @Override
+        public Source getSource() throws IOException {
+            return file.getSource();
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+}
@@ -18,6 +18,8 @@ package org.anarres.cpp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import javax.annotation.CheckForNull;
 
 /**
  * A virtual filesystem implementation using java.io in a virtual
@@ -26,9 +28,25 @@ import java.io.IOException;
 public class ChrootFileSystem implements VirtualFileSystem {
 
     private File root;
+    private final HeaderCache cache;
 
-    public ChrootFileSystem(File root) {
+    /**
+     * Creates a filesystem whose files are read through the given cache.
+     */
+    public ChrootFileSystem(File root, @CheckForNull HeaderCache cache) {
         this.root = root;
+        this.cache = cache;
+    }
+
+    public ChrootFileSystem(File root) {
+        this(root, null);
+    }
+
+    /**
+     * Returns the real directory which is the root of this filesystem.
+     */
+    public File getRoot() {
+        return root;
     }
 
     @Override
@@ -76,8 +94,10 @@ public class ChrootFileSystem implements VirtualFileSystem {
 
         @Override
         public Source getSource() throws IOException {
-            return new FileLexerSource(new File(root, getPath()),
-                    getPath());
+            File real = new File(root, getPath());
+            if (cache != null)
+                return cache.getSource(real, Charset.defaultCharset(), getPath());
+            return new FileLexerSource(real, getPath());
         }
     }
 
@@ -19,6 +19,7 @@ package org.anarres.cpp;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import static org.anarres.cpp.Token.CCOMMENT;
 import static org.anarres.cpp.Token.CPPCOMMENT;
@@ -36,8 +37,13 @@ import static org.anarres.cpp.Token.EOF;
 public class CppReader extends Reader implements Closeable {
 
     private final Preprocessor cpp;
+    private final int size;
     private String token;
     private int idx;
+    /* The text of several tokens, if size is set. */
+    @CheckForNull
+    private StringBuilder buf;
+    private boolean eof;
 
     public CppReader(@Nonnull final Reader r) {
         cpp = new Preprocessor(new LexerSource(r, true) {
@@ -47,12 +53,26 @@ public class CppReader extends Reader implements Closeable {
                         + System.identityHashCode(r) + ">";
             }
         });
+        size = 0;
         token = "";
         idx = 0;
     }
 
     public CppReader(@Nonnull Preprocessor p) {
+        this(p, 0);
+    }
+
+    /**
+     * Creates a CppReader which buffers the text of the preprocessed
+     * tokens.
+     *
+     * @param p the Preprocessor to read.
+     * @param size the number of characters to buffer, or 0 to read
+     *	one token at a time.
+     */
+    public CppReader(@Nonnull Preprocessor p, int size) {
         cpp = p;
+        this.size = size;
         token = "";
         idx = 0;
     }
@@ -85,6 +105,27 @@ public class CppReader extends Reader implements Closeable {
         cpp.addMacro(name, value);
     }
 
+    /* Returns the text of the next token, or null at EOF. */
+    @CheckForNull
+    private String next()
+            throws IOException,
+            LexerException {
+        if (eof)
+            return null;
+        Token tok = cpp.token();
+        switch (tok.getType()) {
+            case EOF:
+                eof = true;
+                return null;
+            case CCOMMENT:
+            case CPPCOMMENT:
+                if (!cpp.getFeature(Feature.KEEPCOMMENTS))
+                    return " ";
+            default:
+                return tok.getText();
+        }
+    }
+
     private boolean refill()
             throws IOException {
         try {
@@ -92,21 +133,25 @@ public class CppReader extends Reader implements Closeable {
             if (token == null)
                 return false;
             while (idx >= token.length()) {
-                Token tok = cpp.token();
-                switch (tok.getType()) {
-                    case EOF:
-                        token = null;
-                        return false;
-                    case CCOMMENT:
-                    case CPPCOMMENT:
-                        if (!cpp.getFeature(Feature.KEEPCOMMENTS)) {
-                            token = " ";
+                String text = next();
+                if (text == null) {
+                    token = null;
+                    return false;
+                }
+                if (text.length() < size) {
+                    if (buf == null)
+                        buf = new StringBuilder(size + 64);
+                    buf.setLength(0);
+                    buf.append(text);
+                    while (buf.length() < size) {
+                        text = next();
+                        if (text == null)
                             break;
-                        }
-                    default:
-                        token = tok.getText();
-                        break;
+                        buf.append(text);
+                    }
+                    text = buf.toString();
                 }
+                token = text;
                 idx = 0;
             }
             return true;
@@ -126,19 +171,26 @@ public class CppReader extends Reader implements Closeable {
         return token.charAt(idx++);
     }
 
+    /**
+     * Copies the text of as many tokens as fit, pulling more from
+     * the Preprocessor until len characters are read or it is
+     * exhausted.
+     */
     @Override
-    /* XXX Very slow and inefficient. */
     public int read(char cbuf[], int off, int len)
             throws IOException {
         if (token == null)
             return -1;
-        for (int i = 0; i < len; i++) {
-            int ch = read();
-            if (ch == -1)
-                return i;
-            cbuf[off + i] = (char) ch;
+        int count = 0;
+        while (count < len) {
+            if (!refill())
+                return (count == 0) ? -1 : count;
+            int n = Math.min(len - count, token.length() - idx);
+            token.getChars(idx, idx + n, cbuf, off + count);
+            idx += n;
+            count += n;
         }
-        return len;
+        return count;
     }
 
     @Override
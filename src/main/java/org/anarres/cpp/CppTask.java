@@ -22,8 +22,18 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Copy;
 import org.apache.tools.ant.types.Path;
 
@@ -32,11 +42,58 @@ import org.apache.tools.ant.types.Path;
  */
 public class CppTask extends Copy {
 
+    /* Holds the messages for one file, which are logged in order. */
     private class Listener extends DefaultPreprocessorListener {
 
+        private final List<String> messages = new ArrayList<String>();
+
         @Override
         protected void print(String msg) {
-            log(msg);
+            messages.add(msg);
+        }
+
+        public void flush() {
+            for (String msg : messages)
+                log(msg);
+            messages.clear();
+        }
+    }
+
+    /* One file to preprocess, with its own fork of the Preprocessor. */
+    private class Job implements Callable<Void> {
+
+        private final String fromFile;
+        private final String toFile;
+        private final Preprocessor cpp;
+        private final Listener listener = new Listener();
+
+        public Job(String fromFile, String toFile, Preprocessor cpp) {
+            this.fromFile = fromFile;
+            this.toFile = toFile;
+            this.cpp = cpp;
+            cpp.setListener(listener);
+        }
+
+        @Override
+        public Void call() throws Exception {
+            preprocess(cpp, new File(fromFile), new File(toFile));
+            return null;
+        }
+
+        /* Deletes the possibly incomplete output. */
+        public boolean delete() {
+            File targetFile = new File(toFile);
+            return !targetFile.exists() || targetFile.delete();
+        }
+
+        public BuildException fail(Exception ioe) {
+            // ioe.printStackTrace();
+            String msg = "Failed to copy " + fromFile + " to " + toFile
+                    + " due to " + ioe.getMessage();
+            if (!delete()) {
+                msg += " and I couldn't delete the corrupt " + toFile;
+            }
+            return new BuildException(msg, ioe, getLocation());
         }
     }
 
@@ -62,10 +119,12 @@ public class CppTask extends Copy {
         }
     }
 
-    private final Listener listener = new Listener();
     private final List<Macro> macros = new ArrayList<Macro>();
     private Path systemincludepath;
     private Path localincludepath;
+    private int threads = 1;
+    private boolean dependencies = false;
+    private boolean overwrite = false;
 
     public void addMacro(Macro macro) {
         macros.add(macro);
@@ -83,6 +142,71 @@ public class CppTask extends Copy {
         localincludepath.add(path);
     }
 
+    /**
+     * Sets the number of files to preprocess in parallel.
+     *
+     * The default is 1. Messages and errors are reported in the
+     * same order regardless.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Enables dependency tracking.
+     *
+     * Each output file is accompanied by a file of the same name
+     * plus ".d", which lists in the format of make the input and
+     * every file it included. An output is then regenerated only
+     * if it, or its dependency file, is missing, or if any of
+     * those files is newer than it.
+     */
+    public void setDependencies(boolean dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    @Override
+    public void setOverwrite(boolean overwrite) {
+        super.setOverwrite(overwrite);
+        this.overwrite = overwrite;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        /* Copy compares only the input; we check the rest. */
+        if (dependencies)
+            forceOverwrite = true;
+        try {
+            super.execute();
+        } finally {
+            forceOverwrite = overwrite;
+        }
+    }
+
+    private static File getDependencyFile(File output) {
+        return new File(output.getPath() + ".d");
+    }
+
+    private boolean isUpToDate(File input, File output) {
+        File depfile = getDependencyFile(output);
+        if (!output.isFile() || !depfile.isFile())
+            return false;
+        long time = output.lastModified();
+        if (input.lastModified() > time || depfile.lastModified() < time)
+            return false;
+        try {
+            for (String path : Dependencies.read(depfile)) {
+                File dep = new File(path);
+                if (!dep.exists() || dep.lastModified() > time)
+                    return false;
+            }
+        } catch (IOException e) {
+            log("Failed to read " + depfile + ": " + e, Project.MSG_WARN);
+            return false;
+        }
+        return true;
+    }
+
     /*
      public void execute() {
      FileWriter writer = null;
@@ -114,20 +238,29 @@ public class CppTask extends Copy {
      }
      }
      */
-    private void preprocess(File input, File output) throws Exception {
-        if (input == null)
-            throw new BuildException("Input not specified");
-        if (output == null)
-            throw new BuildException("Output not specified");
-
+    /**
+     * Returns a Preprocessor to be forked for each file.
+     *
+     * The forks share the macros, and caches of include resolution
+     * and of header contents.
+     */
+    private Preprocessor newPreprocessor() throws LexerException {
         Preprocessor cpp = new Preprocessor();
-        cpp.setListener(listener);
+        cpp.setFileSystem(new JavaFileSystem(new HeaderCache()));
         for (Macro macro : macros)
             cpp.addMacro(macro.getName(), macro.getValue());
         if (systemincludepath != null)
             cpp.setSystemIncludePath(Arrays.asList(systemincludepath.list()));
         if (localincludepath != null)
             cpp.setQuoteIncludePath(Arrays.asList(localincludepath.list()));
+        return cpp;
+    }
+
+    private void preprocess(Preprocessor cpp, File input, File output) throws Exception {
+        if (input == null)
+            throw new BuildException("Input not specified");
+        if (output == null)
+            throw new BuildException("Output not specified");
 
         File dir = output.getParentFile();
         if (!dir.exists()) {
@@ -140,13 +273,11 @@ public class CppTask extends Copy {
         try {
             cpp.addInput(input);
             writer = new FileWriter(output);
-            for (;;) {
-                Token tok = cpp.token();
-                if (tok == null)
-                    break;
-                if (tok.getType() == Token.EOF)
-                    break;
-                writer.write(tok.getText());
+            WriterTokenSink sink = new WriterTokenSink(writer);
+            try {
+                cpp.run(sink);
+            } finally {
+                sink.flush();
             }
         } finally {
             if (writer != null) {
@@ -156,15 +287,69 @@ public class CppTask extends Copy {
                 }
             }
         }
+
+        if (dependencies) {
+            Set<String> deps = new LinkedHashSet<String>();
+            deps.add(input.getPath());
+            for (VirtualFile file : cpp.getIncludes())
+                deps.add(file.getPath());
+            writer = new FileWriter(getDependencyFile(output));
+            try {
+                Dependencies.write(writer, output.getPath(), deps);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Cancels the jobs from the given index after a failure.
+     *
+     * Jobs which are already running cannot be stopped, so this waits
+     * for them, in order that no output is written after the task has
+     * failed. The output of every job which did not complete is then
+     * deleted, so that it is not taken to be up to date.
+     */
+    private void abort(ExecutorService executor, List<Job> jobs, List<Future<Void>> results, int from) {
+        for (int i = from; i < results.size(); i++)
+            results.get(i).cancel(false);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log("Interrupted; some output files may be incomplete", Project.MSG_WARN);
+            return;
+        }
+        for (int i = from; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            job.listener.flush();
+            try {
+                results.get(i).get();
+            } catch (CancellationException e) {
+                if (!job.delete())
+                    log("Failed to delete the incomplete " + job.toFile, Project.MSG_WARN);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                log(job.fail(cause instanceof Exception ? (Exception) cause : ee).getMessage(), Project.MSG_ERR);
+            }
+        }
     }
 
     @Override
     protected void doFileOperations() {
         if (fileCopyMap.size() > 0) {
-            log("Copying " + fileCopyMap.size()
-                    + " file" + (fileCopyMap.size() == 1 ? "" : "s")
-                    + " to " + destDir.getAbsolutePath());
+            Preprocessor cpp;
+            try {
+                cpp = newPreprocessor();
+            } catch (LexerException e) {
+                throw new BuildException(e, getLocation());
+            }
 
+            List<Job> jobs = new ArrayList<Job>();
             Enumeration<String> e = fileCopyMap.keys();
 
             while (e.hasMoreElements()) {
@@ -176,36 +361,76 @@ public class CppTask extends Copy {
                         log("Skipping self-copy of " + fromFile, verbosity);
                         continue;
                     }
+                    if (dependencies && !overwrite
+                            && isUpToDate(new File(fromFile), new File(toFile))) {
+                        log("Skipping up-to-date " + toFile, verbosity);
+                        continue;
+                    }
+                    jobs.add(new Job(fromFile, toFile, cpp.fork()));
+                }
+            }
+
+            if (jobs.isEmpty())
+                return;
+            log("Copying " + jobs.size()
+                    + " file" + (jobs.size() == 1 ? "" : "s")
+                    + " to " + destDir.getAbsolutePath());
 
+            /*
+             FilterSetCollection executionFilters
+             = new FilterSetCollection();
+             if (filtering) {
+             executionFilters
+             .addFilterSet(getProject().getGlobalFilterSet());
+             }
+             for (Enumeration filterEnum = getFilterSets().elements();
+             filterEnum.hasMoreElements();) {
+             executionFilters
+             .addFilterSet((FilterSet) filterEnum.nextElement());
+             }
+             */
+            if (threads <= 1) {
+                for (Job job : jobs) {
+                    log("Copying " + job.fromFile + " to " + job.toFile, verbosity);
                     try {
-                        log("Copying " + fromFile + " to " + toFile, verbosity);
-
-                        /*
-                         FilterSetCollection executionFilters
-                         = new FilterSetCollection();
-                         if (filtering) {
-                         executionFilters
-                         .addFilterSet(getProject().getGlobalFilterSet());
-                         }
-                         for (Enumeration filterEnum = getFilterSets().elements();
-                         filterEnum.hasMoreElements();) {
-                         executionFilters
-                         .addFilterSet((FilterSet) filterEnum.nextElement());
-                         }
-                         */
-                        File srcFile = new File(fromFile);
-                        File dstFile = new File(toFile);
-                        preprocess(srcFile, dstFile);
+                        job.call();
                     } catch (Exception ioe) {
-                        // ioe.printStackTrace();
-                        String msg = "Failed to copy " + fromFile + " to " + toFile
-                                + " due to " + ioe.getMessage();
-                        File targetFile = new File(toFile);
-                        if (targetFile.exists() && !targetFile.delete()) {
-                            msg += " and I couldn't delete the corrupt " + toFile;
+                        throw job.fail(ioe);
+                    } finally {
+                        job.listener.flush();
+                    }
+                }
+            } else {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    List<Future<Void>> results = new ArrayList<Future<Void>>();
+                    for (Job job : jobs)
+                        results.add(executor.submit(job));
+                    /* Report in order, and fail on the first failed file. */
+                    for (int i = 0; i < jobs.size(); i++) {
+                        Job job = jobs.get(i);
+                        log("Copying " + job.fromFile + " to " + job.toFile, verbosity);
+                        BuildException failure;
+                        int next;
+                        try {
+                            results.get(i).get();
+                            continue;
+                        } catch (InterruptedException ie) {
+                            failure = new BuildException(ie, getLocation());
+                            /* This job may still be running. */
+                            next = i;
+                        } catch (ExecutionException ee) {
+                            Throwable cause = ee.getCause();
+                            failure = job.fail(cause instanceof Exception ? (Exception) cause : ee);
+                            next = i + 1;
+                        } finally {
+                            job.listener.flush();
                         }
-                        throw new BuildException(msg, ioe, getLocation());
+                        abort(executor, jobs, results, next);
+                        throw failure;
                     }
+                } finally {
+                    executor.shutdownNow();
                 }
             }
         }
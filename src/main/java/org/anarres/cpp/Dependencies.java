@@ -0,0 +1,142 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+/**
+ * Reads and writes dependency rules in the format of make.
+ *
+ * A rule has the form <code>target: dep1 dep2 ...</code>, as written
+ * by <code>cpp -M</code>. Spaces, tabs and '#' in file names are
+ * escaped with a backslash, and '$' is doubled.
+ */
+/* pp */ class Dependencies {
+
+    /* Long rules are broken with a backslash-newline, as by cpp. */
+    private static final int LINE_LENGTH = 75;
+
+    private Dependencies() {
+    }
+
+    private static boolean isEscaped(char c) {
+        return c == ' ' || c == '\t' || c == '#';
+    }
+
+    /* A ':' in the target, as after a drive letter, ends it only if
+     * followed by whitespace or the end of the line. */
+    private static boolean isSeparator(@Nonnull String line, int i, int end) {
+        if (i == end)
+            return true;
+        char c = line.charAt(i);
+        return c == ' ' || c == '\t';
+    }
+
+    @Nonnull
+    /* pp */ static String escape(@Nonnull String name) {
+        StringBuilder buf = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case ' ':
+                case '\t':
+                case '#':
+                    buf.append('\\');
+                    break;
+                case '$':
+                    buf.append('$');
+                    break;
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Writes a rule for the given target.
+     */
+    /* pp */ static void write(@Nonnull Appendable out, @Nonnull String target, @Nonnull Collection<String> deps)
+            throws IOException {
+        String text = escape(target) + ":";
+        out.append(text);
+        int column = text.length();
+        for (String dep : deps) {
+            text = escape(dep);
+            if (column + 1 + text.length() > LINE_LENGTH && column > 0) {
+                out.append(" \\\n ");
+                column = 1;
+            }
+            out.append(' ').append(text);
+            column += 1 + text.length();
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Reads the dependencies of the first rule in the given file.
+     */
+    @Nonnull
+    /* pp */ static List<String> read(@Nonnull File file)
+            throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            List<String> deps = new ArrayList<String>();
+            StringBuilder buf = new StringBuilder();
+            boolean target = true;
+            for (;;) {
+                String line = in.readLine();
+                if (line == null)
+                    break;
+                boolean more = line.endsWith("\\");
+                int end = more ? line.length() - 1 : line.length();
+                for (int i = 0; i < end; i++) {
+                    char c = line.charAt(i);
+                    if (c == '\\' && i + 1 < end && isEscaped(line.charAt(i + 1))) {
+                        buf.append(line.charAt(++i));
+                    } else if (c == '$' && i + 1 < end && line.charAt(i + 1) == '$') {
+                        buf.append(c);
+                        i++;
+                    } else if (c == ':' && target && isSeparator(line, i + 1, end)) {
+                        buf.setLength(0);
+                        target = false;
+                    } else if (c == ' ' || c == '\t') {
+                        if (buf.length() > 0 && !target)
+                            deps.add(buf.toString());
+                        buf.setLength(0);
+                    } else {
+                        buf.append(c);
+                    }
+                }
+                if (buf.length() > 0 && !target)
+                    deps.add(buf.toString());
+                buf.setLength(0);
+                if (!more)
+                    break;
+            }
+            return deps;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -38,5 +38,24 @@ public enum Feature {
     OBJCSYNTAX,
     INCLUDENEXT,
     /** Random extensions. */
-    PRAGMA_ONCE
+    PRAGMA_ONCE,
+    /**
+     * Returns shared instances of punctuators and other tokens with
+     * fixed text, rather than allocating one per occurrence.
+     * Shared tokens have no line or column.
+     */
+    SHARED_TOKENS,
+    /**
+     * Processes only the directives. Other lines are skipped without
+     * lexing or macro expansion, and appear in the output as newlines.
+     * This finds the included files as quickly as possible.
+     */
+    DEPENDENCY_SCAN,
+    /**
+     * Processes only the directives. Other lines are copied to the
+     * output as LITERAL tokens, without lexing or macro expansion,
+     * and #define and #undef directives are copied after they are
+     * processed. Like cpp -fdirectives-only.
+     */
+    DIRECTIVES_ONLY
 }
@@ -21,13 +21,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
  * A {@link Source} which lexes a file.
  *
- * The input is buffered.
+ * Regular files are memory-mapped, and ASCII input is not decoded.
  *
  * @see Source
  */
@@ -43,11 +48,65 @@ public class FileLexerSource extends InputLexerSource {
      */
     public FileLexerSource(@Nonnull File file, @Nonnull Charset charset, @Nonnull String path)
             throws IOException {
-        super(new FileInputStream(file), charset);
+        super(toReader(file, charset), true);
         this.file = file;
         this.path = path;
     }
 
+    /**
+     * Creates a new Source for lexing the given contents of a File.
+     *
+     * @see HeaderCache
+     */
+    /* pp */ FileLexerSource(@Nonnull File file, @Nonnull String path, @Nonnull char[] contents, int length) {
+        super(new JoinReader(contents, length));
+        this.file = file;
+        this.path = path;
+    }
+
+    /**
+     * Opens the given File for lexing.
+     *
+     * Regular files are memory-mapped, so that ASCII input is
+     * lexed without a decoding pass.
+     */
+    @Nonnull
+    /* pp */ static Reader toReader(@Nonnull File file, @Nonnull Charset charset)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer buf = map(in.getChannel());
+            if (buf == null) {
+                Reader reader = new InputStreamReader(in, charset);
+                in = null;
+                return reader;
+            }
+            return new MappedFileReader(buf, charset);
+        } finally {
+            if (in != null)
+                in.close();
+        }
+    }
+
+    /**
+     * Maps the given channel, or returns null if it should be read
+     * as a stream.
+     */
+    @CheckForNull
+    private static ByteBuffer map(@Nonnull FileChannel channel) {
+        try {
+            long size = channel.size();
+            /* Empty or special files are read as a stream. */
+            if (size == 0 || size > Integer.MAX_VALUE)
+                return null;
+            /* The mapping remains valid after the channel is closed. */
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            /* Not all files can be mapped. */
+            return null;
+        }
+    }
+
     public FileLexerSource(@Nonnull File file, @Nonnull String path)
             throws IOException {
         this(file, Charset.defaultCharset(), path);
@@ -0,0 +1,212 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A cache of the decoded contents and the tokens of files.
+ *
+ * A header which is included by many translation units is read,
+ * decoded and lexed only once; later inclusions replay its tokens.
+ * The tokens depend on some options of the Preprocessor, so a file
+ * may be lexed once for each combination of those options.
+ *
+ * Entries are validated against the size and modification time of
+ * the file on every use, and the least recently used entries are
+ * evicted when the total size exceeds the capacity.
+ *
+ * This class is thread-safe, so one instance may be shared between
+ * Preprocessors.
+ *
+ * @see JavaFileSystem#JavaFileSystem(HeaderCache)
+ */
+public class HeaderCache {
+
+    /** The default capacity, in characters. */
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    /* pp */ static class Entry {
+
+        private final String key;
+        private final long length;
+        private final long lastModified;
+        private final char[] contents;
+        private final int count;
+        /* Guarded by the cache. */
+        private long size;
+        private final Map<Integer, LexedFile> lexed = new HashMap<Integer, LexedFile>();
+
+        public Entry(@Nonnull String key, long length, long lastModified, @Nonnull char[] contents, int count) {
+            this.key = key;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contents = contents;
+            this.count = count;
+            this.size = contents.length;
+        }
+    }
+
+    private final long capacity;
+    private long size;
+    /* In access order, least recently used first. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    /**
+     * Creates a cache which holds at most the given number of characters.
+     */
+    public HeaderCache(@Nonnegative long capacity) {
+        this.capacity = capacity;
+        this.size = 0;
+    }
+
+    public HeaderCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Returns a Source for the given File, which is read only if it
+     * is not already cached, and lexed only if its tokens are not.
+     *
+     * @param file the real file to read.
+     * @param charset the character set of the file.
+     * @param path the path to report, as for {@link FileLexerSource}.
+     * @return the new Source.
+     * @throws IOException if the file cannot be read.
+     */
+    @Nonnull
+    public Source getSource(@Nonnull File file, @Nonnull Charset charset, @Nonnull String path)
+            throws IOException {
+        Entry entry = getEntry(file, charset);
+        return new LexedFileSource(this, entry, file, path);
+    }
+
+    /**
+     * Returns the tokens of the given entry, lexing it if required.
+     */
+    @Nonnull
+    /* pp */ LexedFile getLexed(@Nonnull Entry entry, @Nonnull File file, @Nonnull String path, int flags)
+            throws IOException,
+            LexerException {
+        Integer key = Integer.valueOf(flags);
+        synchronized (this) {
+            LexedFile lexed = entry.lexed.get(key);
+            if (lexed != null)
+                return lexed;
+        }
+
+        LexedFile lexed = LexedFile.lex(new FileLexerSource(file, path, entry.contents, entry.count), flags);
+        synchronized (this) {
+            LexedFile prev = entry.lexed.put(key, lexed);
+            long delta = lexed.getSize() - (prev == null ? 0 : prev.getSize());
+            entry.size += delta;
+            /* Unless it has been evicted. */
+            if (entries.get(entry.key) == entry) {
+                size += delta;
+                evict();
+            }
+        }
+        return lexed;
+    }
+
+    @Nonnull
+    private Entry getEntry(@Nonnull File file, @Nonnull Charset charset)
+            throws IOException {
+        String key = charset.name() + ':' + file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null
+                    && entry.length == length
+                    && entry.lastModified == lastModified)
+                return entry;
+        }
+
+        /* Read outside the lock; a concurrent reader may duplicate this. */
+        Entry entry = read(key, file, charset, length, lastModified);
+        if (entry.size > capacity)
+            return entry;
+        synchronized (this) {
+            Entry prev = entries.put(key, entry);
+            if (prev != null)
+                size -= prev.size;
+            size += entry.size;
+            evict();
+        }
+        return entry;
+    }
+
+    /* Called with the lock held. */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    @Nonnull
+    private static Entry read(@Nonnull String key, @Nonnull File file, @Nonnull Charset charset, long length, long lastModified)
+            throws IOException {
+        Reader in = FileLexerSource.toReader(file, charset);
+        try {
+            /* No charset decodes to more characters than bytes;
+             * the extra one avoids growing the buffer to find EOF. */
+            char[] buf = new char[(int) Math.min(length, Integer.MAX_VALUE - 8) + 1];
+            int count = 0;
+            for (;;) {
+                if (count == buf.length) {
+                    char[] copy = new char[buf.length * 2];
+                    System.arraycopy(buf, 0, copy, 0, count);
+                    buf = copy;
+                }
+                int n = in.read(buf, count, buf.length - count);
+                if (n == -1)
+                    break;
+                count += n;
+            }
+            return new Entry(key, length, lastModified, buf, count);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the number of cached files.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Discards all cached files.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+}
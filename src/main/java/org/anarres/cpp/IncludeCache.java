@@ -0,0 +1,140 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A cache of the files found for include names on include paths.
+ *
+ * Both hits and misses are cached, so that a repeated #include
+ * costs one probe at most, rather than one per directory.
+ *
+ * Each Preprocessor has its own cache by default. Preprocessors
+ * which use the same {@link VirtualFileSystem} may share a cache,
+ * provided the file system does not change while they run.
+ * This class is thread-safe.
+ *
+ * @see Preprocessor#setIncludeCache(IncludeCache)
+ */
+public class IncludeCache {
+
+    /* A cached resolution, which may be a miss. */
+    /* pp */ static class Entry {
+
+        private final VirtualFile file;
+
+        /* pp */ Entry(@CheckForNull VirtualFile file) {
+            this.file = file;
+        }
+
+        @CheckForNull
+        public VirtualFile getFile() {
+            return file;
+        }
+    }
+
+    private static class Key {
+
+        private final List<String> path;
+        private final String name;
+        private final int hash;
+
+        public Key(@Nonnull List<String> path, @Nonnull String name) {
+            this.path = path;
+            this.name = name;
+            this.hash = path.hashCode() * 31 + name.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return hash == k.hash
+                    && name.equals(k.name)
+                    && path.equals(k.path);
+        }
+    }
+
+    private static final Entry MISSING = new Entry(null);
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    @Nonnull
+    private static List<String> toList(@Nonnull Iterable<String> path) {
+        if (path instanceof List)
+            return (List<String>) path;
+        List<String> list = new ArrayList<String>();
+        for (String dir : path)
+            list.add(dir);
+        return list;
+    }
+
+    /**
+     * Returns the cached resolution of the given name on the given
+     * path, or null if there is none.
+     */
+    @CheckForNull
+    /* pp */ Entry get(@Nonnull Iterable<String> path, @Nonnull String name) {
+        return entries.get(new Key(toList(path), name));
+    }
+
+    /**
+     * Records the resolution of the given name on the given path.
+     *
+     * @param file the file found, or null if none was found.
+     */
+    /* pp */ void put(@Nonnull Iterable<String> path, @Nonnull String name, @CheckForNull VirtualFile file) {
+        /* The path may be modified later. */
+        List<String> copy = new ArrayList<String>();
+        for (String dir : path)
+            copy.add(dir);
+        entries.put(new Key(copy, name), file == null ? MISSING : new Entry(file));
+    }
+
+    /**
+     * Removes the resolution of the given name on the given path.
+     */
+    /* pp */ void remove(@Nonnull Iterable<String> path, @Nonnull String name) {
+        entries.remove(new Key(toList(path), name));
+    }
+
+    /**
+     * Returns the number of cached resolutions.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Discards all cached resolutions.
+     */
+    public void clear() {
+        entries.clear();
+    }
+}
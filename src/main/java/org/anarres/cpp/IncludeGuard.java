@@ -0,0 +1,101 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Detects the multiple-include guard idiom in an included file.
+ *
+ * A file is guarded if, apart from whitespace and comments, it
+ * consists of a single #ifndef MACRO ... #endif group. If such
+ * a file is included again while MACRO is defined, it would
+ * produce no tokens, so the Preprocessor need not reopen it.
+ *
+ * The Preprocessor reports each directive and each significant
+ * token at the top level of the file, that is, outside the guard.
+ */
+/* pp */ class IncludeGuard {
+
+    private final String path;
+    private final int depth;
+    private String macro;
+    private boolean closed;
+    private boolean valid;
+
+    /* pp */ IncludeGuard(@Nonnull String path, @Nonnegative int depth) {
+        this.path = path;
+        this.depth = depth;
+        this.macro = null;
+        this.closed = false;
+        this.valid = true;
+    }
+
+    @Nonnull
+    public String getPath() {
+        return path;
+    }
+
+    /** Returns the depth of the conditional stack outside the guard. */
+    @Nonnegative
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Returns true if nothing outside the idiom has been seen. */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /** Returns true if the next directive may open the guard. */
+    public boolean isOpenable() {
+        return valid && macro == null;
+    }
+
+    /** Records the #ifndef which opens the guard. */
+    public void open(@Nonnull String macro) {
+        this.macro = macro;
+    }
+
+    /** Records the #endif which closes the guard. */
+    public void close() {
+        if (macro != null)
+            closed = true;
+    }
+
+    /** Records anything else which is not part of the idiom. */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Returns the guard macro, if the whole file was guarded.
+     */
+    @CheckForNull
+    public String getMacro() {
+        if (valid && closed)
+            return macro;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return path + ": " + (valid ? macro : "unguarded");
+    }
+}
@@ -53,6 +53,10 @@ public class InputLexerSource extends LexerSource {
         this(input, true);
     }
 
+    /* pp */ InputLexerSource(@Nonnull JoinReader input) {
+        super(input, true);
+    }
+
     @Override
     public String getPath() {
         return "<standard-input>";
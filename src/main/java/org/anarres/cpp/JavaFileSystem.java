@@ -18,12 +18,27 @@ package org.anarres.cpp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import javax.annotation.CheckForNull;
 
 /**
  * A virtual filesystem implementation using java.io.
  */
 public class JavaFileSystem implements VirtualFileSystem {
 
+    private final HeaderCache cache;
+
+    /**
+     * Creates a filesystem whose files are read through the given cache.
+     */
+    public JavaFileSystem(@CheckForNull HeaderCache cache) {
+        this.cache = cache;
+    }
+
+    public JavaFileSystem() {
+        this(null);
+    }
+
     @Override
     public VirtualFile getFile(String path) {
         return new JavaFile(path);
@@ -76,6 +91,8 @@ public class JavaFileSystem implements VirtualFileSystem {
 
         @Override
         public Source getSource() throws IOException {
+            if (cache != null)
+                return cache.getSource(this, Charset.defaultCharset(), getPath());
             return new FileLexerSource(this);
         }
 
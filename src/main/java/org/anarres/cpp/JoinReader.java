@@ -19,9 +19,21 @@ package org.anarres.cpp;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 
+/**
+ * Joins continued lines and translates trigraphs.
+ *
+ * Input is read in bulk into a refillable window, and all lookahead
+ * for line splices and trigraphs is done by indexing into that window,
+ * so the underlying Reader is only called once per window.
+ */
 /* pp */ class JoinReader /* extends Reader */ implements Closeable {
 
+    /* pp */ static final int BUFFER_SIZE = 8192;
+
+    @CheckForNull
     private final Reader in;
 
     private PreprocessorListener listener;
@@ -31,22 +43,52 @@ import java.io.Reader;
 
     private int newlines;
     private boolean flushnl;
-    private int[] unget;
-    private int uptr;
 
-    public JoinReader(Reader in, boolean trigraphs) {
+    /* The window. Characters in [pos, limit) have not been read. */
+    private final char[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    public JoinReader(@Nonnull Reader in, boolean trigraphs) {
         this.in = in;
         this.trigraphs = trigraphs;
         this.newlines = 0;
         this.flushnl = false;
-        this.unget = new int[2];
-        this.uptr = 0;
+        this.buf = new char[BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.eof = false;
     }
 
-    public JoinReader(Reader in) {
+    public JoinReader(@Nonnull Reader in) {
         this(in, false);
     }
 
+    /**
+     * Creates a JoinReader over the given characters.
+     *
+     * The characters are the whole window; there is nothing to
+     * refill. They are never modified, so they may be shared.
+     */
+    /* pp */ JoinReader(@Nonnull char[] in, int len) {
+        this.in = null;
+        this.trigraphs = false;
+        this.newlines = 0;
+        this.flushnl = false;
+        this.buf = in;
+        this.pos = 0;
+        this.limit = len;
+        this.eof = true;
+    }
+
+    /**
+     * Creates a JoinReader over the given text.
+     */
+    /* pp */ JoinReader(@Nonnull String in) {
+        this(in.toCharArray(), in.length());
+    }
+
     public void setTrigraphs(boolean enable, boolean warnings) {
         this.trigraphs = enable;
         this.warnings = warnings;
@@ -59,17 +101,37 @@ import java.io.Reader;
                 pp.getWarning(Warning.TRIGRAPHS));
     }
 
-    private int __read() throws IOException {
-        if (uptr > 0)
-            return unget[--uptr];
-        return in.read();
+    /**
+     * Ensures that at least 'need' unread characters are in the window.
+     *
+     * @return false if EOF was reached first.
+     */
+    private boolean fill(int need)
+            throws IOException {
+        while (limit - pos < need) {
+            if (eof)
+                return false;
+            /* We only ever look a few characters ahead, so the
+             * compaction copies almost nothing. */
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int count = in.read(buf, limit, buf.length - limit);
+            if (count == -1)
+                eof = true;
+            else
+                limit += count;
+        }
+        return true;
     }
 
-    private void _unread(int c) {
-        if (c != -1)
-            unget[uptr++] = c;
-        assert uptr <= unget.length :
-                "JoinReader ungets too many characters";
+    private int __read()
+            throws IOException {
+        if (pos < limit || fill(1))
+            return buf[pos++];
+        return -1;
     }
 
     protected void warning(String msg)
@@ -80,17 +142,17 @@ import java.io.Reader;
             throw new LexerException(msg);
     }
 
-    private char trigraph(char raw, char repl)
+    private int trigraph(char raw, char repl)
             throws IOException, LexerException {
         if (trigraphs) {
             if (warnings)
                 warning("trigraph ??" + raw + " converted to " + repl);
+            pos += 2;
             return repl;
         } else {
             if (warnings)
                 warning("trigraph ??" + raw + " ignored");
-            _unread(raw);
-            _unread('?');
+            /* Leave "?raw" in the window. */
             return '?';
         }
     }
@@ -99,9 +161,9 @@ import java.io.Reader;
             throws IOException, LexerException {
         int c = __read();
         if (c == '?' && (trigraphs || warnings)) {
-            int d = __read();
-            if (d == '?') {
-                int e = __read();
+            /* The window is at the character after the first '?'. */
+            if (fill(2) && buf[pos] == '?') {
+                char e = buf[pos + 1];
                 switch (e) {
                     case '(':
                         return trigraph('(', '[');
@@ -122,9 +184,7 @@ import java.io.Reader;
                     case '-':
                         return trigraph('-', '~');
                 }
-                _unread(e);
             }
-            _unread(d);
         }
         return c;
     }
@@ -143,19 +203,22 @@ import java.io.Reader;
             int c = _read();
             switch (c) {
                 case '\\':
-                    int d = _read();
-                    switch (d) {
+                    /* A trigraph never translates to a newline,
+                     * so we may look at the raw window here. */
+                    if (!fill(1))
+                        return c;
+                    switch (buf[pos]) {
                         case '\n':
+                            pos++;
                             newlines++;
                             continue;
                         case '\r':
+                            pos++;
                             newlines++;
-                            int e = _read();
-                            if (e != '\n')
-                                _unread(e);
+                            if (fill(1) && buf[pos] == '\n')
+                                pos++;
                             continue;
                         default:
-                            _unread(d);
                             return c;
                     }
                 case '\r':
@@ -192,7 +255,8 @@ import java.io.Reader;
     @Override
     public void close()
             throws IOException {
-        in.close();
+        if (in != null)
+            in.close();
     }
 
     @Override
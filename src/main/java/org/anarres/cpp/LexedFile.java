@@ -0,0 +1,319 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import static org.anarres.cpp.Token.*;
+
+/**
+ * The tokens of a file, lexed once so that they may be replayed.
+ *
+ * Tokens are held in parallel arrays. The text of each token is a
+ * range of a single char[], except that tokens with fixed text store
+ * none. Warnings and errors from the lexer are recorded with the
+ * index of the token being lexed, so that they can be reported again.
+ *
+ * Lexing depends only on the file and on the flags returned by
+ * {@link #getFlags(Preprocessor)}, with one exception: the lexer
+ * reads header names only on #include lines. The Preprocessor
+ * decides that, so it is done here for any line which starts
+ * with # include or # include_next.
+ *
+ * Instances are immutable, and may be shared between Preprocessors.
+ *
+ * @see LexedFileSource
+ */
+/* pp */ final class LexedFile {
+
+    /* pp */ static final int DIGRAPHS = 1;
+    /* pp */ static final int TRIGRAPHS = 2;
+    /* pp */ static final int TRIGRAPH_WARNINGS = 4;
+
+    /**
+     * Returns the options of the given Preprocessor which affect lexing.
+     */
+    /* pp */ static int getFlags(@Nonnull Preprocessor pp) {
+        int flags = 0;
+        if (pp.getFeature(Feature.DIGRAPHS))
+            flags |= DIGRAPHS;
+        if (pp.getFeature(Feature.TRIGRAPHS))
+            flags |= TRIGRAPHS;
+        if (pp.getWarning(Warning.TRIGRAPHS))
+            flags |= TRIGRAPH_WARNINGS;
+        return flags;
+    }
+
+    /** A warning or error from the lexer. */
+    /* pp */ static class Diagnostic {
+
+        private final int index;
+        private final int line;
+        private final int column;
+        private final String msg;
+        private final boolean error;
+
+        /* pp */ Diagnostic(int index, int line, int column, @Nonnull String msg, boolean error) {
+            this.index = index;
+            this.line = line;
+            this.column = column;
+            this.msg = msg;
+            this.error = error;
+        }
+
+        /** Returns the index of the token which was being lexed. */
+        public int getIndex() {
+            return index;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        @Nonnull
+        public String getMessage() {
+            return msg;
+        }
+
+        public boolean isError() {
+            return error;
+        }
+    }
+
+    private static final Diagnostic[] NO_DIAGNOSTICS = new Diagnostic[0];
+
+    private final int count;
+    private final int[] types;
+    private final int[] lines;
+    private final int[] columns;
+    /* Token i has the text [offsets[i], offsets[i + 1]). */
+    private final int[] offsets;
+    private final char[] text;
+    @CheckForNull
+    private final Object[] values;
+    private final Diagnostic[] diagnostics;
+
+    private LexedFile(int count, int[] types, int[] lines, int[] columns,
+            int[] offsets, char[] text, Object[] values,
+            Diagnostic[] diagnostics) {
+        this.count = count;
+        this.types = types;
+        this.lines = lines;
+        this.columns = columns;
+        this.offsets = offsets;
+        this.text = text;
+        this.values = values;
+        this.diagnostics = diagnostics;
+    }
+
+    /** Returns the number of tokens, including the final EOF. */
+    @Nonnegative
+    public int getCount() {
+        return count;
+    }
+
+    public int getType(@Nonnegative int i) {
+        return types[i];
+    }
+
+    public int getLine(@Nonnegative int i) {
+        return lines[i];
+    }
+
+    public int getColumn(@Nonnegative int i) {
+        return columns[i];
+    }
+
+    @Nonnull
+    public Diagnostic[] getDiagnostics() {
+        return diagnostics;
+    }
+
+    /** Returns the approximate size of this object, in chars. */
+    /* pp */ long getSize() {
+        return text.length + 10L * count;
+    }
+
+    /**
+     * Returns a new Token for token i.
+     *
+     * @param symbols the table into which to intern identifiers, or null.
+     * @param shared true if shared tokens may be returned.
+     */
+    @Nonnull
+    /* pp */ Token getToken(@Nonnegative int i, @CheckForNull SymbolTable symbols, boolean shared) {
+        int type = types[i];
+        int off = offsets[i];
+        int len = offsets[i + 1] - off;
+        Token tok = Token.getShared(type);
+        if (tok != null) {
+            /* Fixed text. */
+            if (shared)
+                return tok;
+            tok = new Token(type);
+        } else if (type == IDENTIFIER && symbols != null) {
+            tok = new Token(symbols.intern(text, off, len, SymbolTable.hash(text, off, len)));
+        } else {
+            tok = new Token(type, new String(text, off, len),
+                    values == null ? null : values[i]);
+        }
+        tok.setLocation(lines[i], columns[i]);
+        return tok;
+    }
+
+    /* Accumulates the tokens, and records the diagnostics. */
+    private static class Builder implements PreprocessorListener {
+
+        private int count = 0;
+        private int[] types = new int[1024];
+        private int[] lines = new int[1024];
+        private int[] columns = new int[1024];
+        private int[] offsets = new int[1025];
+        private Object[] values = null;
+        private final StringBuilder text = new StringBuilder();
+        private final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+
+        private static int[] grow(int[] in, int size) {
+            int[] out = new int[size];
+            System.arraycopy(in, 0, out, 0, in.length);
+            return out;
+        }
+
+        public void add(@Nonnull Token tok) {
+            if (count == types.length) {
+                int size = count * 2;
+                types = grow(types, size);
+                lines = grow(lines, size);
+                columns = grow(columns, size);
+                offsets = grow(offsets, size + 1);
+                if (values != null) {
+                    Object[] copy = new Object[size];
+                    System.arraycopy(values, 0, copy, 0, count);
+                    values = copy;
+                }
+            }
+            int type = tok.getType();
+            types[count] = type;
+            lines[count] = tok.getLine();
+            columns[count] = tok.getColumn();
+            if (TokenType.getTokenText(type) == null)
+                text.append(tok.getText());
+            Object value = tok.getValue();
+            if (value != null) {
+                if (values == null)
+                    values = new Object[types.length];
+                values[count] = value;
+            }
+            count++;
+            offsets[count] = text.length();
+        }
+
+        @Override
+        public void handleWarning(Source source, int line, int column, String msg) {
+            diagnostics.add(new Diagnostic(count, line, column, msg, false));
+        }
+
+        @Override
+        public void handleError(Source source, int line, int column, String msg) {
+            diagnostics.add(new Diagnostic(count, line, column, msg, true));
+        }
+
+        @Override
+        public void handleSourceChange(Source source, SourceChangeEvent event) {
+        }
+
+        @Nonnull
+        public LexedFile build() {
+            char[] chars = new char[text.length()];
+            text.getChars(0, chars.length, chars, 0);
+            Diagnostic[] diags = diagnostics.isEmpty()
+                    ? NO_DIAGNOSTICS
+                    : diagnostics.toArray(new Diagnostic[diagnostics.size()]);
+            return new LexedFile(count, types, lines, columns,
+                    offsets, chars, values, diags);
+        }
+    }
+
+    /**
+     * Lexes the whole of the given source.
+     *
+     * @param source a new LexerSource, which is consumed.
+     * @param flags the lexing flags, from {@link #getFlags(Preprocessor)}.
+     */
+    @Nonnull
+    /* pp */ static LexedFile lex(@Nonnull LexerSource source, int flags)
+            throws IOException,
+            LexerException {
+        Builder builder = new Builder();
+        Preprocessor pp = new Preprocessor();
+        if ((flags & DIGRAPHS) != 0)
+            pp.addFeature(Feature.DIGRAPHS);
+        if ((flags & TRIGRAPHS) != 0)
+            pp.addFeature(Feature.TRIGRAPHS);
+        if ((flags & TRIGRAPH_WARNINGS) != 0)
+            pp.addWarning(Warning.TRIGRAPHS);
+        pp.setListener(builder);
+        source.init(pp);
+
+        /* As Preprocessor.include(boolean) would. */
+        boolean directive = false;
+        boolean include = false;
+        for (;;) {
+            Token tok = source.token();
+            builder.add(tok);
+            switch (tok.getType()) {
+                case EOF:
+                    return builder.build();
+                case WHITESPACE:
+                case CCOMMENT:
+                case CPPCOMMENT:
+                    break;
+                case HASH:
+                    directive = true;
+                    break;
+                case IDENTIFIER:
+                    if (directive) {
+                        String name = tok.getText();
+                        if (name.equals("include") || name.equals("include_next")) {
+                            source.setInclude(true);
+                            include = true;
+                        }
+                    }
+                    directive = false;
+                    break;
+                case NL:
+                    if (include) {
+                        source.setInclude(false);
+                        include = false;
+                    }
+                    directive = false;
+                    break;
+                default:
+                    directive = false;
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import static org.anarres.cpp.Token.*;
+
+/**
+ * A {@link Source} which replays the tokens of a file from a
+ * {@link HeaderCache}.
+ *
+ * The file is lexed when the first token is requested, unless the
+ * cache already holds its tokens for the same lexing flags.
+ *
+ * @see LexedFile
+ */
+/* pp */ class LexedFileSource extends Source {
+
+    private final HeaderCache cache;
+    private final HeaderCache.Entry entry;
+    private final File file;
+    private final String path;
+
+    private int flags;
+    private boolean shared;
+    private SymbolTable symbols;
+
+    @CheckForNull
+    private LexedFile lexed;
+    /* The next token to return. */
+    private int index;
+    /* The next diagnostic to report. */
+    private int diagnostic;
+    private boolean bol;
+    private boolean include;
+
+    /* pp */ LexedFileSource(@Nonnull HeaderCache cache, @Nonnull HeaderCache.Entry entry,
+            @Nonnull File file, @Nonnull String path) {
+        this.cache = cache;
+        this.entry = entry;
+        this.file = file;
+        this.path = path;
+        /* As an uninitialized LexerSource. */
+        this.flags = LexedFile.DIGRAPHS;
+        this.shared = false;
+        this.symbols = null;
+        this.lexed = null;
+        this.index = 0;
+        this.diagnostic = 0;
+        this.bol = true;
+        this.include = false;
+    }
+
+    @Override
+    /* pp */ void init(Preprocessor pp) {
+        super.init(pp);
+        this.flags = LexedFile.getFlags(pp);
+        this.shared = pp.getFeature(Feature.SHARED_TOKENS);
+        this.symbols = pp.getSymbols();
+    }
+
+    @Nonnull
+    private LexedFile getLexed()
+            throws IOException,
+            LexerException {
+        if (lexed == null)
+            lexed = cache.getLexed(entry, file, path, flags);
+        return lexed;
+    }
+
+    @Override
+    /* pp */ void setInclude(boolean b) {
+        this.include = b;
+    }
+
+    /* Reports the diagnostics raised while lexing up to token i. */
+    private void diagnose(@Nonnull LexedFile lexed, int i)
+            throws LexerException {
+        LexedFile.Diagnostic[] diagnostics = lexed.getDiagnostics();
+        while (diagnostic < diagnostics.length && diagnostics[diagnostic].getIndex() <= i) {
+            LexedFile.Diagnostic d = diagnostics[diagnostic++];
+            if (d.isError())
+                error(d.getLine(), d.getColumn(), d.getMessage());
+            else
+                warning(d.getLine(), d.getColumn(), d.getMessage());
+        }
+    }
+
+    @Override
+    public Token token()
+            throws IOException,
+            LexerException {
+        LexedFile lexed = getLexed();
+        diagnose(lexed, index);
+        Token tok = lexed.getToken(index, symbols, shared);
+        switch (tok.getType()) {
+            case EOF:
+                /* Stay here. */
+                return tok;
+            case NL:
+                bol = true;
+                /* Every #include line was lexed in include mode, which
+                 * ends it with a single newline. If this one was not
+                 * actually an #include, join the newlines as the lexer
+                 * would have done. */
+                if (!include && lexed.getType(index + 1) == NL) {
+                    StringBuilder text = new StringBuilder(tok.getText());
+                    while (lexed.getType(index + 1) == NL) {
+                        index++;
+                        text.append(lexed.getToken(index, null, false).getText());
+                    }
+                    diagnose(lexed, index);
+                    tok = new Token(NL, tok.getLine(), tok.getColumn(), text.toString());
+                }
+                break;
+            case WHITESPACE:
+            case CCOMMENT:
+                break;
+            default:
+                bol = false;
+                break;
+        }
+        index++;
+        return tok;
+    }
+
+    /**
+     * Skips tokens until the next HASH, as LexerSource skips
+     * characters.
+     */
+    @Override
+    /* pp */ Token skipgroup()
+            throws IOException,
+            LexerException {
+        if (!bol)
+            return null;
+        LexedFile lexed = getLexed();
+        int start = index;
+        for (;;) {
+            int type = lexed.getType(index);
+            if (type == HASH || type == EOF)
+                break;
+            index++;
+        }
+        diagnose(lexed, index - 1);
+        int nls = lexed.getLine(index) - lexed.getLine(start);
+        if (nls == 0)
+            return null;
+        char[] text = new char[nls];
+        for (int i = 0; i < text.length; i++)
+            text[i] = '\n';
+        return new Token(NL, lexed.getLine(start), lexed.getColumn(start), new String(text));
+    }
+
+    /**
+     * Copies tokens until the next line-initial HASH, as LexerSource
+     * copies characters.
+     */
+    @Override
+    /* pp */ Token copygroup()
+            throws IOException,
+            LexerException {
+        if (!bol)
+            return null;
+        LexedFile lexed = getLexed();
+        int start = index;
+        StringBuilder text = new StringBuilder();
+        /* The start of the current line in text. */
+        int mark = 0;
+        boolean content = false;
+        boolean linestart = true;
+        for (;;) {
+            int type = lexed.getType(index);
+            if (type == EOF || (type == HASH && linestart))
+                break;
+            switch (type) {
+                case NL:
+                    linestart = true;
+                    break;
+                case WHITESPACE:
+                case CCOMMENT:
+                case CPPCOMMENT:
+                    break;
+                default:
+                    linestart = false;
+                    content = true;
+                    break;
+            }
+            text.append(lexed.getToken(index, null, false).getText());
+            index++;
+            if (type == NL)
+                mark = text.length();
+        }
+        diagnose(lexed, index - 1);
+        if (content) {
+            if (linestart)
+                text.setLength(mark);
+            return new Token(LITERAL, lexed.getLine(start), lexed.getColumn(start), text.toString());
+        }
+        int nls = lexed.getLine(index) - lexed.getLine(start);
+        if (nls == 0)
+            return null;
+        char[] nl = new char[nls];
+        for (int i = 0; i < nl.length; i++)
+            nl[i] = '\n';
+        return new Token(NL, lexed.getLine(start), lexed.getColumn(start), new String(nl));
+    }
+
+    /* Tokens are contiguous, so the end of one is the start of the next. */
+    @Override
+    public int getLine() {
+        if (lexed == null)
+            return 1;
+        return lexed.getLine(index);
+    }
+
+    @Override
+    public int getColumn() {
+        if (lexed == null)
+            return 0;
+        return lexed.getColumn(index);
+    }
+
+    @Override
+    /* pp */ boolean isNumbered() {
+        return true;
+    }
+
+    @Nonnull
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getName() {
+        return getPath();
+    }
+
+    @Override
+    public String toString() {
+        return "file " + getPath();
+    }
+}
@@ -19,6 +19,7 @@ package org.anarres.cpp;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import static org.anarres.cpp.Token.*;
 
@@ -40,6 +41,11 @@ public class LexerSource extends Source {
     private boolean include;
 
     private boolean digraphs;
+    private boolean shared;
+    private SymbolTable symbols;
+
+    /* Identifier characters, reused. */
+    private char[] ibuf;
 
     /* Unread. */
     private int u0, u1;
@@ -50,16 +56,23 @@ public class LexerSource extends Source {
     private int lastcolumn;
     private boolean cr;
 
+    /* Every character read, while copying a group. */
+    @CheckForNull
+    private StringBuilder copy;
+
     /* ppvalid is:
      * false in StringLexerSource,
      * true in FileLexerSource */
-    public LexerSource(Reader r, boolean ppvalid) {
-        this.reader = new JoinReader(r);
+    /* pp */ LexerSource(@Nonnull JoinReader reader, boolean ppvalid) {
+        this.reader = reader;
         this.ppvalid = ppvalid;
         this.bol = true;
         this.include = false;
 
         this.digraphs = true;
+        this.shared = false;
+        this.symbols = null;
+        this.ibuf = new char[64];
 
         this.ucount = 0;
 
@@ -69,10 +82,16 @@ public class LexerSource extends Source {
         this.cr = false;
     }
 
+    public LexerSource(Reader r, boolean ppvalid) {
+        this(new JoinReader(r), ppvalid);
+    }
+
     @Override
     /* pp */ void init(Preprocessor pp) {
         super.init(pp);
         this.digraphs = pp.getFeature(Feature.DIGRAPHS);
+        this.shared = pp.getFeature(Feature.SHARED_TOKENS);
+        this.symbols = pp.getSymbols();
         this.reader.init(pp, this);
     }
 
@@ -135,7 +154,7 @@ public class LexerSource extends Source {
     }
 
     /* A flag for string handling. */
-
+    @Override
     /* pp */ void setInclude(boolean b) {
         this.include = b;
     }
@@ -217,6 +236,9 @@ public class LexerSource extends Source {
                 break;
         }
 
+        if (copy != null && c != -1)
+            copy.append((char) c);
+
         /*
          * if (isLineSeparator(c)) {
          * line++;
@@ -242,6 +264,8 @@ public class LexerSource extends Source {
             } else {
                 column--;
             }
+            if (copy != null)
+                copy.setLength(copy.length() - 1);
             switch (ucount) {
                 case 0:
                     u0 = c;
@@ -714,23 +738,33 @@ public class LexerSource extends Source {
         return tok;
     }
 
+    /* Identifiers are interned if we have a Preprocessor. */
     @Nonnull
     private Token identifier(int c)
             throws IOException,
             LexerException {
-        StringBuilder text = new StringBuilder();
-        int d;
-        text.append((char) c);
+        char[] text = ibuf;
+        int len = 0;
+        int hash = 0;
+        int d = c;
         for (;;) {
-            d = read();
-            if (Character.isIdentifierIgnorable(d))
-				; else if (Character.isJavaIdentifierPart(d))
-                text.append((char) d);
-            else
+            if (len == text.length) {
+                char[] tmp = new char[len * 2];
+                System.arraycopy(text, 0, tmp, 0, len);
+                text = ibuf = tmp;
+            }
+            text[len++] = (char) d;
+            hash = 31 * hash + (char) d;
+            do {
+                d = read();
+            } while (Character.isIdentifierIgnorable(d));
+            if (!Character.isJavaIdentifierPart(d))
                 break;
         }
         unread(d);
-        return new Token(IDENTIFIER, text.toString());
+        if (symbols != null)
+            return new Token(symbols.intern(text, 0, len, hash));
+        return new Token(IDENTIFIER, new String(text, 0, len));
     }
 
     @Nonnull
@@ -753,6 +787,14 @@ public class LexerSource extends Source {
         return new Token(WHITESPACE, text.toString());
     }
 
+    /* Returns a token with fixed text, which may be shared. */
+    @Nonnull
+    private Token fixed(int type) {
+        if (shared)
+            return Token.getShared(type);
+        return new Token(type);
+    }
+
     /* No token processed by cond() contains a newline. */
     @Nonnull
     private Token cond(char c, int yes, int no)
@@ -760,9 +802,9 @@ public class LexerSource extends Source {
             LexerException {
         int d = read();
         if (c == d)
-            return new Token(yes);
+            return fixed(yes);
         unread(d);
-        return new Token(no);
+        return fixed(no);
     }
 
     @Override
@@ -809,7 +851,7 @@ public class LexerSource extends Source {
 
             case '#':
                 if (bol)
-                    tok = new Token(HASH);
+                    tok = fixed(HASH);
                 else
                     tok = cond('#', PASTE, '#');
                 break;
@@ -817,20 +859,20 @@ public class LexerSource extends Source {
             case '+':
                 d = read();
                 if (d == '+')
-                    tok = new Token(INC);
+                    tok = fixed(INC);
                 else if (d == '=')
-                    tok = new Token(PLUS_EQ);
+                    tok = fixed(PLUS_EQ);
                 else
                     unread(d);
                 break;
             case '-':
                 d = read();
                 if (d == '-')
-                    tok = new Token(DEC);
+                    tok = fixed(DEC);
                 else if (d == '=')
-                    tok = new Token(SUB_EQ);
+                    tok = fixed(SUB_EQ);
                 else if (d == '>')
-                    tok = new Token(ARROW);
+                    tok = fixed(ARROW);
                 else
                     unread(d);
                 break;
@@ -845,7 +887,7 @@ public class LexerSource extends Source {
                 else if (d == '/')
                     tok = cppcomment();
                 else if (d == '=')
-                    tok = new Token(DIV_EQ);
+                    tok = fixed(DIV_EQ);
                 else
                     unread(d);
                 break;
@@ -853,26 +895,26 @@ public class LexerSource extends Source {
             case '%':
                 d = read();
                 if (d == '=')
-                    tok = new Token(MOD_EQ);
+                    tok = fixed(MOD_EQ);
                 else if (digraphs && d == '>')
-                    tok = new Token('}');	// digraph
+                    tok = fixed('}');	// digraph
                 else if (digraphs && d == ':')
                     PASTE:
                     {
                         d = read();
                         if (d != '%') {
                             unread(d);
-                            tok = new Token('#');	// digraph
+                            tok = fixed('#');	// digraph
                             break PASTE;
                         }
                         d = read();
                         if (d != ':') {
                             unread(d);	// Unread 2 chars here.
                             unread('%');
-                            tok = new Token('#');	// digraph
+                            tok = fixed('#');	// digraph
                             break PASTE;
                         }
-                        tok = new Token(PASTE);	// digraph
+                        tok = fixed(PASTE);	// digraph
                     }
                 else
                     unread(d);
@@ -882,7 +924,7 @@ public class LexerSource extends Source {
                 /* :: */
                 d = read();
                 if (digraphs && d == '>')
-                    tok = new Token(']');	// digraph
+                    tok = fixed(']');	// digraph
                 else
                     unread(d);
                 break;
@@ -893,13 +935,13 @@ public class LexerSource extends Source {
                 } else {
                     d = read();
                     if (d == '=')
-                        tok = new Token(LE);
+                        tok = fixed(LE);
                     else if (d == '<')
                         tok = cond('=', LSH_EQ, LSH);
                     else if (digraphs && d == ':')
-                        tok = new Token('[');	// digraph
+                        tok = fixed('[');	// digraph
                     else if (digraphs && d == '%')
-                        tok = new Token('{');	// digraph
+                        tok = fixed('{');	// digraph
                     else
                         unread(d);
                 }
@@ -912,7 +954,7 @@ public class LexerSource extends Source {
             case '>':
                 d = read();
                 if (d == '=')
-                    tok = new Token(GE);
+                    tok = fixed(GE);
                 else if (d == '>')
                     tok = cond('=', RSH_EQ, RSH);
                 else
@@ -926,7 +968,7 @@ public class LexerSource extends Source {
             case '|':
                 d = read();
                 if (d == '=')
-                    tok = new Token(OR_EQ);
+                    tok = fixed(OR_EQ);
                 else if (d == '|')
                     tok = cond('=', LOR_EQ, LOR);
                 else
@@ -937,7 +979,7 @@ public class LexerSource extends Source {
                 if (d == '&')
                     tok = cond('=', LAND_EQ, LAND);
                 else if (d == '=')
-                    tok = new Token(AND_EQ);
+                    tok = fixed(AND_EQ);
                 else
                     unread(d);
                 break;
@@ -979,13 +1021,15 @@ public class LexerSource extends Source {
                 tok = identifier(c);
             } else {
                 String text = TokenType.getTokenText(c);
-                if (text == null) {
+                if (text != null) {
+                    tok = fixed(c);
+                } else {
                     if ((c >>> 16) == 0)    // Character.isBmpCodePoint() is new in 1.7
                         text = Character.toString((char) c);
                     else
                         text = new String(Character.toChars(c));
+                    tok = new Token(c, text);
                 }
-                tok = new Token(c, text);
             }
         }
 
@@ -1000,13 +1044,183 @@ public class LexerSource extends Source {
             }
         }
 
-        tok.setLocation(_l, _c);
+        if (!Token.isShared(tok))
+            tok.setLocation(_l, _c);
         if (DEBUG)
             System.out.println("lx: Returning " + tok);
         // (new Exception("here")).printStackTrace(System.out);
         return tok;
     }
 
+    /* Skips a comment whose opening slash-star has been read. */
+    private void skipccomment()
+            throws IOException,
+            LexerException {
+        int d = read();
+        while (d != -1) {
+            if (d == '*') {
+                d = read();
+                if (d == '/')
+                    return;
+            } else {
+                d = read();
+            }
+        }
+    }
+
+    /* Skips a literal whose opening quote has been read. */
+    private void skipstring(int close)
+            throws IOException,
+            LexerException {
+        for (;;) {
+            int d = read();
+            if (d == close)
+                return;
+            if (d == '\\')
+                d = read();
+            if (isLineSeparator(d)) {
+                /* Unterminated; see string(). */
+                unread(d);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Skips lines until the next line-initial '#', without lexing.
+     *
+     * Comments, literals and line splices are still respected, so a
+     * '#' within any of them does not end the group.
+     */
+    @Override
+    /* pp */ Token skipgroup()
+            throws IOException,
+            LexerException {
+        return group(false);
+    }
+
+    /**
+     * Copies lines until the next line-initial '#', without lexing,
+     * as skipgroup() skips them.
+     */
+    @Override
+    /* pp */ Token copygroup()
+            throws IOException,
+            LexerException {
+        return group(true);
+    }
+
+    @CheckForNull
+    private Token group(boolean copy)
+            throws IOException,
+            LexerException {
+        if (!ppvalid || !bol)
+            return null;
+
+        int _l = line;
+        int _c = column;
+        StringBuilder text = null;
+        if (copy)
+            this.copy = text = new StringBuilder();
+        /* The start of the current line in text. */
+        int mark = 0;
+        boolean content = false;
+
+        try {
+            LINE:
+            for (;;) {
+                if (text != null)
+                    mark = text.length();
+                int c = read();
+                int d;
+
+                /* Whitespace and comments may precede a directive,
+                 * and lines holding only these are not content. */
+                for (;;) {
+                    if (c == '/') {
+                        d = read();
+                        if (d == '/') {
+                            do {
+                                d = read();
+                            } while (!isLineSeparator(d));
+                            c = d;
+                            continue;
+                        } else if (d != '*') {
+                            unread(d);
+                            break;
+                        }
+                        skipccomment();
+                    } else if (isLineSeparator(c) || !Character.isWhitespace(c)) {
+                        break;
+                    }
+                    c = read();
+                }
+
+                if (c == '#' || c == -1) {
+                    unread(c);
+                    if (text != null)
+                        text.setLength(mark);
+                    break;
+                }
+                if (digraphs && c == '%') {
+                    d = read();
+                    if (d == ':') {
+                        unread(d);
+                        unread(c);
+                        if (text != null)
+                            text.setLength(mark);
+                        break;
+                    }
+                    unread(d);
+                }
+                if (!isLineSeparator(c))
+                    content = true;
+
+                /* Skip the rest of the line. */
+                for (;;) {
+                    if (c == -1)
+                        break LINE;
+                    if (isLineSeparator(c))
+                        continue LINE;
+                    switch (c) {
+                        case '"':
+                        case '\'':
+                            skipstring(c);
+                            break;
+                        case '/':
+                            d = read();
+                            if (d == '*') {
+                                skipccomment();
+                            } else if (d == '/') {
+                                do {
+                                    d = read();
+                                } while (!isLineSeparator(d));
+                                c = d;
+                                continue;
+                            } else {
+                                unread(d);
+                            }
+                            break;
+                    }
+                    c = read();
+                }
+            }
+        } finally {
+            this.copy = null;
+        }
+
+        /* Lines holding only whitespace and comments are skipped. */
+        if (text != null && content)
+            return new Token(LITERAL, _l, _c, text.toString());
+        int nls = line - _l;
+        if (nls == 0)
+            return null;
+        char[] nl = new char[nls];
+        for (int i = 0; i < nl.length; i++)
+            nl[i] = '\n';
+        return new Token(NL, _l, _c, new String(nl));
+    }
+
     @Override
     public void close()
             throws IOException {
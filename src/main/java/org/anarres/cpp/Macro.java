@@ -29,6 +29,15 @@ import java.util.List;
  */
 public class Macro {
 
+    /* The instructions of a compiled expansion. Each is an opcode in
+     * the low OP_BITS bits, with an argument index above them. */
+    /* pp */ static final int OP_TOKEN = 0;
+    /* pp */ static final int OP_ARG = 1;
+    /* pp */ static final int OP_STRING = 2;
+    /* pp */ static final int OP_PASTE = 3;
+    /* pp */ static final int OP_BITS = 2;
+    /* pp */ static final int OP_MASK = (1 << OP_BITS) - 1;
+
     private Source source;
     private String name;
     /* It's an explicit decision to keep these around here. We don't
@@ -38,6 +47,9 @@ public class Macro {
     private List<String> args;
     private boolean variadic;
     private List<Token> tokens;
+    /* The compiled expansion, or null if the tokens have changed. */
+    private Token[] body;
+    private int[] code;
 
     public Macro(Source source, String name) {
         this.source = source;
@@ -82,6 +94,10 @@ public class Macro {
         this.args = args;
     }
 
+    /* pp */ List<String> getArgNames() {
+        return args;
+    }
+
     /**
      * Returns true if this is a function-like macro.
      */
@@ -115,6 +131,7 @@ public class Macro {
      */
     public void addToken(Token tok) {
         this.tokens.add(tok);
+        this.code = null;
     }
 
     /**
@@ -133,12 +150,62 @@ public class Macro {
          *   M_PASTE, tok0, M_PASTE, tok1, tok2
          */
         this.tokens.add(tokens.size() - 1, tok);
+        this.code = null;
     }
 
     /* pp */ List<Token> getTokens() {
         return tokens;
     }
 
+    /**
+     * Compiles the expansion into the form used by MacroTokenSource.
+     *
+     * This is done when the macro is added to a Preprocessor, so that
+     * a shared macro table is never modified during expansion.
+     */
+    /* pp */ void compile() {
+        Token[] body = tokens.toArray(new Token[tokens.size()]);
+        int[] code = new int[body.length];
+        for (int i = 0; i < body.length; i++) {
+            Token tok = body[i];
+            switch (tok.getType()) {
+                case Token.M_ARG:
+                    code[i] = (((Integer) tok.getValue()).intValue() << OP_BITS) | OP_ARG;
+                    break;
+                case Token.M_STRING:
+                    code[i] = (((Integer) tok.getValue()).intValue() << OP_BITS) | OP_STRING;
+                    break;
+                case Token.M_PASTE:
+                    code[i] = OP_PASTE;
+                    break;
+                default:
+                    code[i] = OP_TOKEN;
+                    break;
+            }
+        }
+        this.body = body;
+        this.code = code;
+    }
+
+    /**
+     * Returns the tokens of the compiled expansion.
+     *
+     * Tokens for OP_TOKEN are returned as they are; the others give
+     * the position and text of their instruction.
+     */
+    /* pp */ Token[] getBody() {
+        if (code == null)
+            compile();
+        return body;
+    }
+
+    /** Returns the instructions of the compiled expansion. */
+    /* pp */ int[] getCode() {
+        if (code == null)
+            compile();
+        return code;
+    }
+
     /* Paste tokens are inserted before the first of the two pasted
      * tokens, so it's a kind of bytecode notation. This method
      * swaps them around again. We know that there will never be two
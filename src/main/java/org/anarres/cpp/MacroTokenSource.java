@@ -17,8 +17,13 @@
 package org.anarres.cpp;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import org.slf4j.Logger;
@@ -30,27 +35,50 @@ import static org.anarres.cpp.Token.*;
 /* pp */ class MacroTokenSource extends Source {
 
     private static final Logger LOG = LoggerFactory.getLogger(MacroTokenSource.class);
+
+    /* The multi-character punctuators, by text, for paste(). The
+     * lexer does not return '#' or PASTE for a pasted "#" or "##". */
+    private static final Map<String, Integer> PUNCTUATORS = new HashMap<String, Integer>();
+
+    static {
+        for (int type = 256; type <= INVALID; type++) {
+            String text = TokenType.getTokenText(type);
+            if (text != null && type != HASH && type != PASTE)
+                PUNCTUATORS.put(text, Integer.valueOf(type));
+        }
+    }
+
     private final Macro macro;
-    private final Iterator<Token> tokens;	/* Pointer into the macro.  */
+    private final Token[] tokens;
+    private final int[] code;
+    private int pc;	/* Pointer into the macro.  */
 
     private final List<Argument> args;	/* { unexpanded, expanded } */
+    /* The range of the TokenBuffer holding the args. */
+    private final int start;
+    private final int end;
 
     private Iterator<Token> arg;	/* "current expansion" */
 
-    /* pp */ MacroTokenSource(@Nonnull Macro m, @Nonnull List<Argument> args) {
+    private Preprocessor pp;
+
+    /* pp */ MacroTokenSource(@Nonnull Macro m, @CheckForNull List<Argument> args, int start, int end) {
         this.macro = m;
-        this.tokens = m.getTokens().iterator();
+        this.tokens = m.getBody();
+        this.code = m.getCode();
+        this.pc = 0;
         this.args = args;
+        this.start = start;
+        this.end = end;
         this.arg = null;
     }
 
+    /* Called when this source is pushed. */
     @Override
-    /* pp */ boolean isExpanding(@Nonnull Macro m) {
-        /* When we are expanding an arg, 'this' macro is not
-         * being expanded, and thus we may re-expand it. */
-        if (/* XXX this.arg == null && */this.macro == m)
-            return true;
-        return super.isExpanding(m);
+    /* pp */ void init(Preprocessor pp) {
+        super.init(pp);
+        this.pp = pp;
+        pp.setExpanding(macro, true);
     }
 
     /* XXX Called from Preprocessor [ugly]. */
@@ -119,6 +147,8 @@ import static org.anarres.cpp.Token.*;
             LexerException {
         // List<Token> out = new ArrayList<Token>();
         StringBuilder buf = new StringBuilder();
+        /* The tokens in buf, unless something else was appended. */
+        List<Token> parts = new ArrayList<Token>();
         // Token err = null;
         /* We know here that arg is null or expired,
          * since we cannot paste an expanded arg. */
@@ -129,49 +159,81 @@ import static org.anarres.cpp.Token.*;
         boolean comma = false;
         TOKEN:
         for (int i = 0; i < count; i++) {
-            if (!tokens.hasNext()) {
+            if (pc == code.length) {
                 /* XXX This one really should throw. */
                 error(ptok.getLine(), ptok.getColumn(),
                         "Paste at end of expansion");
                 buf.append(' ').append(ptok.getText());
+                parts = null;
                 break;
             }
-            Token tok = tokens.next();
+            int op = code[pc];
+            Token tok = tokens[pc++];
             // System.out.println("Paste " + tok);
-            switch (tok.getType()) {
-                case M_PASTE:
+            switch (op & Macro.OP_MASK) {
+                case Macro.OP_PASTE:
                     /* One extra to paste, plus one because the
                      * paste token didn't count. */
                     count += 2;
                     ptok = tok;
-                    break;
-                case M_ARG:
-                    int idx = ((Integer) tok.getValue()).intValue();
+                    comma = false;
+                    continue TOKEN;
+                case Macro.OP_ARG:
+                    int idx = op >>> Macro.OP_BITS;
                     Argument arg = args.get(idx);
                     if (comma && isVariadicArgument(idx) && arg.isEmpty()) {
                         // Ugly way to strip the comma.
                         buf.setLength(buf.length() - 1);
+                        parts.remove(parts.size() - 1);
                     } else {
                         concat(buf, arg);
+                        parts.addAll(arg);
                     }
                     break;
-                /* XXX Test this. */
-                case CCOMMENT:
-                case CPPCOMMENT:
-                    // TODO: In cpp, -CC keeps these comments too,
-                    // but turns all C++ comments into C comments.
-                    break;
-                case ',':
-                    comma = true;
-                    buf.append(tok.getText());
-                    continue TOKEN;
                 default:
-                    buf.append(tok.getText());
+                    switch (tok.getType()) {
+                        /* XXX Test this. */
+                        case CCOMMENT:
+                        case CPPCOMMENT:
+                            // TODO: In cpp, -CC keeps these comments too,
+                            // but turns all C++ comments into C comments.
+                            break;
+                        case ',':
+                            comma = true;
+                            buf.append(tok.getText());
+                            parts.add(tok);
+                            continue TOKEN;
+                        default:
+                            buf.append(tok.getText());
+                            parts.add(tok);
+                            break;
+                    }
                     break;
             }
             comma = false;
         }
 
+        if (parts != null) {
+            switch (parts.size()) {
+                case 0:
+                    return;
+                case 1:
+                    Token tok = relocate(parts.get(0));
+                    if (tok != null) {
+                        arg = Collections.singletonList(tok).iterator();
+                        return;
+                    }
+                    break;
+                case 2:
+                    tok = paste(parts.get(0), parts.get(1));
+                    if (tok != null) {
+                        arg = Collections.singletonList(tok).iterator();
+                        return;
+                    }
+                    break;
+            }
+        }
+
         /* Push and re-lex. */
         /*
          StringBuilder		src = new StringBuilder();
@@ -184,6 +246,83 @@ import static org.anarres.cpp.Token.*;
         arg = new SourceIterator(sl);
     }
 
+    private static boolean isPunctuator(@Nonnull Token tok) {
+        int type = tok.getType();
+        String text = tok.getText();
+        if (type < 256)
+            return type != '#' && text.length() == 1 && text.charAt(0) == type
+                    && type > ' ' && !Character.isJavaIdentifierPart(type);
+        Integer punctuator = PUNCTUATORS.get(text);
+        return punctuator != null && punctuator.intValue() == type;
+    }
+
+    private static boolean isIdentifierPart(@Nonnull String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isJavaIdentifierPart(c) || Character.isIdentifierIgnorable(c))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the token which re-lexing the text of the given token
+     * would return, or null if it might not be a single token.
+     *
+     * Re-lexed tokens start at line 1, column 0.
+     */
+    @CheckForNull
+    private static Token relocate(@Nonnull Token tok) {
+        switch (tok.getType()) {
+            case IDENTIFIER:
+                Symbol symbol = tok.getSymbol();
+                if (symbol == null)
+                    return new Token(IDENTIFIER, 1, 0, tok.getText());
+                Token out = new Token(symbol);
+                out.setLocation(1, 0);
+                return out;
+            case NUMBER:
+                return new Token(NUMBER, 1, 0, tok.getText(), tok.getValue());
+            default:
+                if (!isPunctuator(tok))
+                    return null;
+                return new Token(tok.getType(), 1, 0, tok.getText());
+        }
+    }
+
+    /**
+     * Returns the token which re-lexing the concatenated text of the
+     * given tokens would return, or null if it might not be a single
+     * token.
+     */
+    @CheckForNull
+    private static Token paste(@Nonnull Token left, @Nonnull Token right) {
+        String text = left.getText() + right.getText();
+        switch (left.getType()) {
+            case IDENTIFIER:
+                switch (right.getType()) {
+                    case IDENTIFIER:
+                        return new Token(IDENTIFIER, 1, 0, text);
+                    case NUMBER:
+                        if (isIdentifierPart(right.getText()))
+                            return new Token(IDENTIFIER, 1, 0, text);
+                        return null;
+                    default:
+                        return null;
+                }
+            case NUMBER:
+                /* Needs the lexer to compute the value. */
+                return null;
+            default:
+                if (!isPunctuator(left) || !isPunctuator(right))
+                    return null;
+                Integer type = PUNCTUATORS.get(text);
+                if (type == null)
+                    return null;
+                return new Token(type.intValue(), 1, 0, text);
+        }
+    }
+
     @Override
     public Token token()
             throws IOException,
@@ -202,23 +341,30 @@ import static org.anarres.cpp.Token.*;
                 arg = null;
             }
 
-            if (!tokens.hasNext())
+            if (pc == code.length)
                 return new Token(EOF, -1, -1, "");	/* End of macro. */
 
-            Token tok = tokens.next();
-            int idx;
-            switch (tok.getType()) {
-                case M_STRING:
+            int op = code[pc];
+            Token tok = tokens[pc++];
+            switch (op & Macro.OP_MASK) {
+                case Macro.OP_STRING:
                     /* Use the nonexpanded arg. */
-                    idx = ((Integer) tok.getValue()).intValue();
-                    return stringify(tok, args.get(idx));
-                case M_ARG:
-                    /* Expand the arg. */
-                    idx = ((Integer) tok.getValue()).intValue();
-                    // System.out.println("Pushing arg " + args.get(idx));
-                    arg = args.get(idx).expansion();
+                    return stringify(tok, args.get(op >>> Macro.OP_BITS));
+                case Macro.OP_ARG:
+                    /* Expand the arg, the first time it is used. */
+                    Argument a = args.get(op >>> Macro.OP_BITS);
+                    // System.out.println("Pushing arg " + a);
+                    /* When we are expanding an arg, 'this' macro is not
+                     * being expanded, and thus we may re-expand it. */
+                    pp.setExpanding(macro, false);
+                    try {
+                        a.expand(pp);
+                    } finally {
+                        pp.setExpanding(macro, true);
+                    }
+                    arg = a.expansion();
                     break;
-                case M_PASTE:
+                case Macro.OP_PASTE:
                     paste(tok);
                     break;
                 default:
@@ -228,6 +374,18 @@ import static org.anarres.cpp.Token.*;
 
     }
 
+    /* Called when this source is popped. */
+    @Override
+    public void close()
+            throws IOException {
+        if (pp != null) {
+            pp.setExpanding(macro, false);
+            pp.releaseArguments(start, end);
+            pp = null;
+        }
+        super.close();
+    }
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
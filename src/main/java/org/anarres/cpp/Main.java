@@ -16,11 +16,34 @@
  */
 package org.anarres.cpp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -47,6 +70,71 @@ public class Main {
         return buf;
     }
 
+    @Nonnull
+    private static String getBaseName(@Nonnull File file) {
+        String name = file.getName();
+        int idx = name.lastIndexOf('.');
+        if (idx > 0)
+            name = name.substring(0, idx);
+        return name;
+    }
+
+    /* How to write dependencies, for -M and related options. */
+    private static class DependencyWriter {
+
+        private final boolean only;
+        @CheckForNull
+        private final List<String> systemdirs;
+        @CheckForNull
+        private final File file;
+
+        /**
+         * @param only true if dependencies are written instead of the output.
+         * @param systemdirs directories whose files are omitted, or null.
+         * @param file the file to write, or null.
+         */
+        public DependencyWriter(boolean only, @CheckForNull List<String> systemdirs, @CheckForNull File file) {
+            this.only = only;
+            this.systemdirs = systemdirs;
+            this.file = file;
+        }
+
+        private boolean isSystem(@Nonnull String path) {
+            if (systemdirs != null)
+                for (String dir : systemdirs)
+                    if (path.startsWith(dir + File.separator))
+                        return true;
+            return false;
+        }
+
+        /**
+         * Writes a rule for the given inputs to the file given with -MF,
+         * else to the given file, else to standard output.
+         */
+        public void write(@Nonnull Preprocessor pp, @Nonnull List<File> inputs, @CheckForNull File defaultFile)
+                throws IOException {
+            String target = inputs.isEmpty() ? "-" : getBaseName(inputs.get(0)) + ".o";
+            Set<String> deps = new LinkedHashSet<String>();
+            for (File input : inputs)
+                deps.add(input.getPath());
+            for (VirtualFile include : pp.getIncludes())
+                if (!isSystem(include.getPath()))
+                    deps.add(include.getPath());
+            File out = (file != null) ? file : defaultFile;
+            if (out == null) {
+                Dependencies.write(System.out, target, deps);
+                System.out.flush();
+                return;
+            }
+            Writer writer = new BufferedWriter(new FileWriter(out));
+            try {
+                Dependencies.write(writer, target, deps);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         (new Main()).run(args);
     }
@@ -84,6 +172,31 @@ public class Main {
                 .withRequiredArg().ofType(String.class).describedAs("warning");
         OptionSpec<Void> noWarningOption = parser.acceptsAll(Arrays.asList("no-warnings", "w"),
                 "Disables ALL warnings.");
+        OptionSpec<File> pchOption = parser.accepts("pch",
+                "Reads the macros and include state from a file written by --write-pch, before processing.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<File> writePchOption = parser.accepts("write-pch",
+                "Writes the macros and include state to file after processing, for use with --pch.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<Void> depsOption = parser.accepts("M",
+                "Writes a rule for make describing the dependencies of the input, instead of the output.");
+        OptionSpec<Void> userDepsOption = parser.accepts("MM",
+                "Like -M, but omits files in the system header directories.");
+        OptionSpec<Void> depsFileOption = parser.accepts("MD",
+                "Like -M, but writes the rule to name.d, as well as the output.");
+        OptionSpec<Void> userDepsFileOption = parser.accepts("MMD",
+                "Like -MD, but omits files in the system header directories.");
+        OptionSpec<File> depsOutputOption = parser.accepts("MF",
+                "Writes the rule for -M or -MD to the given file.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<Void> directivesOnlyOption = parser.accepts("fdirectives-only",
+                "Processes only the directives, copying other lines without macro expansion.");
+        OptionSpec<File> outputDirOption = parser.accepts("output-dir",
+                "Preprocesses each input as a separate translation unit, writing dir/name.i for each input name.c.")
+                .withRequiredArg().ofType(File.class).describedAs("dir");
+        OptionSpec<Integer> threadsOption = parser.accepts("threads",
+                "The number of translation units to preprocess in parallel with --output-dir.")
+                .withRequiredArg().ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors());
         OptionSpec<File> inputsOption = parser.nonOptions()
                 .ofType(File.class).describedAs("Files to process.");
 
@@ -111,9 +224,22 @@ public class Main {
         pp.getFrameworksPath().add("/System/Library/Frameworks");
         pp.getFrameworksPath().add("/Library/Frameworks");
         pp.getFrameworksPath().add("/Local/Library/Frameworks");
+        List<String> systemdirs = new ArrayList<String>(pp.getSystemIncludePath());
+        systemdirs.addAll(pp.getFrameworksPath());
 
         if (options.has(debugOption))
             pp.addFeature(Feature.DEBUG);
+        if (options.has(directivesOnlyOption))
+            pp.addFeature(Feature.DIRECTIVES_ONLY);
+
+        for (File file : options.valuesOf(pchOption)) {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                pp.readPrecompiledHeader(in);
+            } finally {
+                in.close();
+            }
+        }
 
         if (options.has(noWarningOption))
             pp.getWarnings().clear();
@@ -142,17 +268,6 @@ public class Main {
             pp.getSystemIncludePath().add(dir.getAbsolutePath());
         for (File dir : options.valuesOf(iquoteOption))
             pp.getQuoteIncludePath().add(dir.getAbsolutePath());
-        for (File file : options.valuesOf(includeOption))
-            // Comply exactly with spec.
-            pp.addInput(new StringLexerSource("#" + "include \"" + file + "\"\n"));
-
-        List<File> inputs = options.valuesOf(inputsOption);
-        if (inputs.isEmpty()) {
-            pp.addInput(new InputLexerSource(System.in));
-        } else {
-            for (File input : inputs)
-                pp.addInput(new FileLexerSource(input));
-        }
 
         if (pp.getFeature(Feature.DEBUG)) {
             LOG.info("#" + "include \"...\" search starts here:");
@@ -164,15 +279,87 @@ public class Main {
             LOG.info("End of search list.");
         }
 
+        DependencyWriter deps = null;
+        boolean user = options.has(userDepsOption) || options.has(userDepsFileOption);
+        if (user || options.has(depsOption) || options.has(depsFileOption))
+            deps = new DependencyWriter(
+                    options.has(depsOption) || options.has(userDepsOption),
+                    user ? systemdirs : null,
+                    options.valueOf(depsOutputOption));
+        if (deps != null && deps.only)
+            pp.addFeature(Feature.DEPENDENCY_SCAN);
+
+        List<File> includes = options.valuesOf(includeOption);
+        List<File> inputs = options.valuesOf(inputsOption);
+        if (options.has(outputDirOption)) {
+            if (options.has(writePchOption)) {
+                LOG.error("Cannot use --write-pch with --output-dir.");
+                return;
+            }
+            if (options.has(depsOutputOption)) {
+                LOG.error("Cannot use -MF with --output-dir.");
+                return;
+            }
+            batch(pp, includes, inputs, options.valueOf(outputDirOption), options.valueOf(threadsOption).intValue(), deps);
+            return;
+        }
+
+        addIncludes(pp, includes);
+        if (inputs.isEmpty()) {
+            pp.addInput(new InputLexerSource(System.in));
+        } else {
+            for (File input : inputs)
+                pp.addInput(new FileLexerSource(input));
+        }
+
+        boolean depsOnly = deps != null && deps.only;
+        if (!process(pp, depsOnly ? null : new OutputStreamWriter(System.out)))
+            return;
+
+        if (deps != null) {
+            File file = null;
+            if (!depsOnly)
+                file = new File((inputs.isEmpty() ? "-" : getBaseName(inputs.get(0))) + ".d");
+            deps.write(pp, inputs, file);
+        }
+
+        if (options.has(writePchOption)) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(options.valueOf(writePchOption)));
+            try {
+                pp.writePrecompiledHeader(out);
+            } finally {
+                out.close();
+            }
+        }
+
+    }
+
+    private static void addIncludes(@Nonnull Preprocessor pp, @Nonnull List<File> includes) {
+        for (File file : includes)
+            // Comply exactly with spec.
+            pp.addInput(new StringLexerSource("#" + "include \"" + file + "\"\n"));
+    }
+
+    /**
+     * Writes the output of the given Preprocessor.
+     *
+     * @param out the output, or null to read the input only for its dependencies.
+     * @return true on success, false if the Preprocessor failed.
+     */
+    private static boolean process(@Nonnull Preprocessor pp, @CheckForNull Writer out) {
         try {
-            for (;;) {
-                Token tok = pp.token();
-                if (tok == null)
-                    break;
-                if (tok.getType() == Token.EOF)
-                    break;
-                System.out.print(tok.getText());
+            if (out == null) {
+                pp.run(null);
+            } else {
+                WriterTokenSink sink = new WriterTokenSink(out);
+                try {
+                    pp.run(sink);
+                } finally {
+                    /* Keep the output produced before any failure. */
+                    sink.flush();
+                }
             }
+            return true;
         } catch (Exception e) {
             StringBuilder buf = new StringBuilder("Preprocessor failed:\n");
             Source s = pp.getSource();
@@ -181,8 +368,84 @@ public class Main {
                 s = s.getParent();
             }
             LOG.error(buf.toString(), e);
+            return false;
         }
+    }
 
+    /**
+     * Preprocesses each input as a separate translation unit.
+     *
+     * Each input has its own fork of the given Preprocessor, and
+     * they share caches of include resolution and header contents.
+     * Dependencies, if required, are written to dir/name.d.
+     */
+    private static void batch(@Nonnull Preprocessor pp,
+            @Nonnull final List<File> includes, @Nonnull List<File> inputs,
+            @Nonnull final File dir, int threads,
+            @CheckForNull final DependencyWriter deps)
+            throws Exception {
+        Map<File, File> outputs = new LinkedHashMap<File, File>();
+        Set<File> seen = new HashSet<File>();
+        for (File input : inputs) {
+            File output = new File(dir, getBaseName(input) + ".i");
+            if (!seen.add(output)) {
+                LOG.error("Two inputs would be written to " + output);
+                return;
+            }
+            outputs.put(input, output);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.error("Cannot create directory " + dir);
+            return;
+        }
+
+        pp.setFileSystem(new JavaFileSystem(new HeaderCache()));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (Map.Entry<File, File> e : outputs.entrySet()) {
+                final File input = e.getKey();
+                final File output = e.getValue();
+                final Preprocessor child = pp.fork();
+                child.setListener(new DefaultPreprocessorListener());
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        try {
+                            addIncludes(child, includes);
+                            child.addInput(new FileLexerSource(input));
+                            boolean ok;
+                            if (deps != null && deps.only) {
+                                ok = process(child, null);
+                            } else {
+                                Writer out = new OutputStreamWriter(new FileOutputStream(output));
+                                try {
+                                    ok = process(child, out);
+                                } finally {
+                                    out.close();
+                                }
+                            }
+                            if (ok && deps != null)
+                                deps.write(child, Collections.singletonList(input),
+                                        new File(dir, getBaseName(input) + ".d"));
+                            return Boolean.valueOf(ok);
+                        } catch (IOException e) {
+                            /* Counted as a failure, as process() does. */
+                            LOG.error("Failed to process " + input, e);
+                            return Boolean.FALSE;
+                        }
+                    }
+                }));
+            }
+            int failed = 0;
+            for (Future<Boolean> result : results)
+                if (!result.get().booleanValue())
+                    failed++;
+            if (failed > 0)
+                LOG.error(failed + " of " + results.size() + " translation units failed.");
+        } finally {
+            executor.shutdown();
+        }
     }
 
     private static void version(@Nonnull PrintStream out) {
@@ -0,0 +1,155 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A Reader over a memory-mapped file.
+ *
+ * While the input is pure ASCII, bytes are widened straight into
+ * the caller's buffer. At the first non-ASCII byte, the remainder
+ * of the file is decoded using the given Charset.
+ */
+/* pp */ class MappedFileReader extends Reader {
+
+    private static final byte[] ASCII = new byte[128];
+
+    static {
+        for (int i = 0; i < ASCII.length; i++)
+            ASCII[i] = (byte) i;
+    }
+
+    /**
+     * Returns true if every ASCII byte in the given Charset is
+     * always the corresponding ASCII character.
+     *
+     * This holds for UTF-8 and for single-byte supersets of ASCII,
+     * but not for stateful or wide encodings.
+     */
+    /* pp */ static boolean isAsciiCompatible(@Nonnull Charset charset) {
+        if ("UTF-8".equals(charset.name()))
+            return true;
+        /* Some charsets, such as x-JISAutoDetect, only decode. */
+        if (!charset.canEncode())
+            return false;
+        if (charset.newEncoder().maxBytesPerChar() != 1)
+            return false;
+        try {
+            String text = new String(ASCII, "US-ASCII");
+            return Arrays.equals(ASCII, text.getBytes(charset.name()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Nonnull
+    private static CharsetDecoder newDecoder(@Nonnull Charset charset) {
+        /* As InputStreamReader does. */
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private final ByteBuffer in;
+    private final Charset charset;
+    @CheckForNull
+    private CharsetDecoder decoder;
+    private boolean flushing;
+    /* A decoded character which did not fit in the caller's buffer. */
+    private int pending;
+
+    /* pp */ MappedFileReader(@Nonnull ByteBuffer in, @Nonnull Charset charset) {
+        this.in = in;
+        this.charset = charset;
+        this.decoder = isAsciiCompatible(charset) ? null : newDecoder(charset);
+        this.flushing = false;
+        this.pending = -1;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len)
+            throws IOException {
+        if (len == 0)
+            return 0;
+        if (pending != -1) {
+            cbuf[off] = (char) pending;
+            pending = -1;
+            return 1;
+        }
+        if (decoder == null) {
+            int count = Math.min(len, in.remaining());
+            if (count == 0)
+                return -1;
+            int pos = in.position();
+            for (int i = 0; i < count; i++) {
+                byte b = in.get(pos + i);
+                if (b < 0) {
+                    decoder = newDecoder(charset);
+                    count = i;
+                    break;
+                }
+                cbuf[off + i] = (char) b;
+            }
+            in.position(pos + count);
+            if (count > 0)
+                return count;
+        }
+        return decode(cbuf, off, len);
+    }
+
+    private int decode(char[] cbuf, int off, int len)
+            throws IOException {
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        CoderResult result = CoderResult.UNDERFLOW;
+        if (!flushing) {
+            result = decoder.decode(in, out, true);
+            if (result.isUnderflow())
+                flushing = true;
+        }
+        if (flushing)
+            result = decoder.flush(out);
+        if (result.isError())
+            result.throwException();
+        int count = out.position() - off;
+        if (count > 0)
+            return count;
+        if (result.isUnderflow())
+            return -1;
+        /* Overflow with nothing written: a surrogate pair, and len == 1. */
+        CharBuffer pair = CharBuffer.allocate(2);
+        decoder.decode(in, pair, true);
+        cbuf[off] = pair.get(0);
+        pending = pair.get(1);
+        return 1;
+    }
+
+    @Override
+    public void close()
+            throws IOException {
+    }
+}
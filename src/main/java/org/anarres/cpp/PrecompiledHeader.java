@@ -0,0 +1,245 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import static org.anarres.cpp.Token.*;
+
+/**
+ * The state of a Preprocessor after a common prelude, in a form
+ * which may be written to and read from a file.
+ *
+ * This is the equivalent of a precompiled header: the macros,
+ * the files marked by #pragma once, the include guards, the list
+ * of included files and the value of __COUNTER__.
+ *
+ * @see Preprocessor#writePrecompiledHeader(java.io.OutputStream)
+ * @see Preprocessor#readPrecompiledHeader(java.io.InputStream)
+ */
+/* pp */ class PrecompiledHeader {
+
+    /* "JCPP" */
+    private static final int MAGIC = 0x4a435050;
+    private static final int VERSION = 1;
+
+    private static final int V_NULL = 0;
+    private static final int V_INTEGER = 1;
+    private static final int V_STRING = 2;
+    private static final int V_NUMBER = 3;
+
+    /* pp */ int counter;
+    /* pp */ final List<Macro> macros = new ArrayList<Macro>();
+    /* pp */ final List<String> onceseenpaths = new ArrayList<String>();
+    /* pp */ final Map<String, String> includeguards = new LinkedHashMap<String, String>();
+    /* pp */ final List<String> includes = new ArrayList<String>();
+
+    /* writeUTF() is limited to 64K. */
+    private static void writeString(@Nonnull DataOutputStream out, @CheckForNull String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+
+    @CheckForNull
+    private static String readString(@Nonnull DataInputStream in)
+            throws IOException {
+        int len = in.readInt();
+        if (len == -1)
+            return null;
+        if (len < 0)
+            throw new IOException("Bad string length " + len);
+        char[] buf = new char[len];
+        for (int i = 0; i < len; i++)
+            buf[i] = in.readChar();
+        return new String(buf);
+    }
+
+    private static void writeToken(@Nonnull DataOutputStream out, @Nonnull Token tok)
+            throws IOException {
+        out.writeInt(tok.getType());
+        out.writeInt(tok.getLine());
+        out.writeInt(tok.getColumn());
+        writeString(out, tok.getText());
+        Object value = tok.getValue();
+        if (value == null) {
+            out.writeByte(V_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(V_INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        } else if (value instanceof String) {
+            out.writeByte(V_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof NumericValue) {
+            NumericValue number = (NumericValue) value;
+            out.writeByte(V_NUMBER);
+            out.writeInt(number.getBase());
+            writeString(out, number.getIntegerPart());
+            writeString(out, number.getFractionalPart());
+            out.writeInt(number.getExponentBase());
+            writeString(out, number.getExponent());
+            out.writeInt(number.getFlags());
+        } else {
+            throw new IOException("Cannot save value of " + tok + ": " + value.getClass());
+        }
+    }
+
+    @Nonnull
+    private static Token readToken(@Nonnull DataInputStream in, @Nonnull SymbolTable symbols)
+            throws IOException {
+        int type = in.readInt();
+        int line = in.readInt();
+        int column = in.readInt();
+        String text = readString(in);
+        Object value;
+        int tag = in.readByte();
+        switch (tag) {
+            case V_NULL:
+                if (type == IDENTIFIER && text != null) {
+                    Token tok = new Token(symbols.intern(text));
+                    tok.setLocation(line, column);
+                    return tok;
+                }
+                value = null;
+                break;
+            case V_INTEGER:
+                value = Integer.valueOf(in.readInt());
+                break;
+            case V_STRING:
+                value = readString(in);
+                break;
+            case V_NUMBER:
+                NumericValue number = new NumericValue(in.readInt(), readString(in));
+                String fraction = readString(in);
+                if (fraction != null)
+                    number.setFractionalPart(fraction);
+                int expbase = in.readInt();
+                String exponent = readString(in);
+                if (exponent != null)
+                    number.setExponent(expbase, exponent);
+                number.setFlags(in.readInt());
+                value = number;
+                break;
+            default:
+                throw new IOException("Bad value tag " + tag);
+        }
+        return new Token(type, line, column, text, value);
+    }
+
+    private static void writeMacro(@Nonnull DataOutputStream out, @Nonnull Macro m)
+            throws IOException {
+        writeString(out, m.getName());
+        List<String> args = m.getArgNames();
+        if (args == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(args.size());
+            for (String arg : args)
+                writeString(out, arg);
+        }
+        out.writeBoolean(m.isVariadic());
+        List<Token> tokens = m.getTokens();
+        out.writeInt(tokens.size());
+        for (Token tok : tokens)
+            writeToken(out, tok);
+    }
+
+    @Nonnull
+    private static Macro readMacro(@Nonnull DataInputStream in, @Nonnull SymbolTable symbols)
+            throws IOException {
+        Macro m = new Macro(readString(in));
+        int nargs = in.readInt();
+        if (nargs != -1) {
+            List<String> args = new ArrayList<String>(nargs);
+            for (int i = 0; i < nargs; i++)
+                args.add(readString(in));
+            m.setArgs(args);
+        }
+        m.setVariadic(in.readBoolean());
+        int ntokens = in.readInt();
+        for (int i = 0; i < ntokens; i++)
+            m.addToken(readToken(in, symbols));
+        return m;
+    }
+
+    /**
+     * Writes this state to the given stream.
+     *
+     * @throws IOException if a macro holds a token value which
+     * cannot be saved, or if an I/O error occurs.
+     */
+    public void write(@Nonnull DataOutputStream out)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(counter);
+        out.writeInt(macros.size());
+        for (Macro m : macros)
+            writeMacro(out, m);
+        out.writeInt(onceseenpaths.size());
+        for (String path : onceseenpaths)
+            writeString(out, path);
+        out.writeInt(includeguards.size());
+        for (Map.Entry<String, String> e : includeguards.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        out.writeInt(includes.size());
+        for (String path : includes)
+            writeString(out, path);
+        out.flush();
+    }
+
+    /**
+     * Reads a state from the given stream.
+     *
+     * @param symbols the table into which to intern identifiers.
+     * @throws IOException if the stream is not a valid state, or
+     * if an I/O error occurs.
+     */
+    @Nonnull
+    public static PrecompiledHeader read(@Nonnull DataInputStream in, @Nonnull SymbolTable symbols)
+            throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a precompiled header.");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported precompiled header version " + version);
+        PrecompiledHeader pch = new PrecompiledHeader();
+        pch.counter = in.readInt();
+        for (int i = in.readInt(); i > 0; i--)
+            pch.macros.add(readMacro(in, symbols));
+        for (int i = in.readInt(); i > 0; i--)
+            pch.onceseenpaths.add(readString(in));
+        for (int i = in.readInt(); i > 0; i--)
+            pch.includeguards.put(readString(in), readString(in));
+        for (int i = in.readInt(); i > 0; i--)
+            pch.includes.add(readString(in));
+        return pch;
+    }
+}
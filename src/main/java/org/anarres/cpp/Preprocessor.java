@@ -17,8 +17,12 @@
 package org.anarres.cpp;
 
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -103,13 +107,23 @@ public class Preprocessor implements Closeable {
     private final List<Source> inputs;
 
     /* The fundamental engine. */
-    private final Map<String, Macro> macros;
+    private SymbolTable macros;
     private final Stack<State> states;
     private Source source;
+    /* The macros being expanded by MacroTokenSources on the stack. */
+    private final Set<Macro> expanding = new HashSet<Macro>();
+    /* The number of MacroTokenSources on the stack. */
+    private int expansions;
+    /* The arguments of their invocations. */
+    private final TokenBuffer arguments = new TokenBuffer();
+    /* The start of the arguments being collected, if any. */
+    private int collecting;
 
     /* Miscellaneous support. */
     private int counter;
     private final Set<String> onceseenpaths = new HashSet<String>();
+    /* Guard macros of wholly guarded files, by path. */
+    private final Map<String, String> includeguards = new HashMap<String, String>();
     private final List<VirtualFile> includes = new ArrayList<VirtualFile>();
 
     /* Support junk to make it work like cpp */
@@ -121,15 +135,13 @@ public class Preprocessor implements Closeable {
     private final Set<Feature> features;
     private final Set<Warning> warnings;
     private VirtualFileSystem filesystem;
+    private IncludeCache includecache;
     private PreprocessorListener listener;
 
-    public Preprocessor() {
+    private Preprocessor(@Nonnull SymbolTable macros) {
         this.inputs = new ArrayList<Source>();
 
-        this.macros = new HashMap<String, Macro>();
-        macros.put(__LINE__.getName(), __LINE__);
-        macros.put(__FILE__.getName(), __FILE__);
-        macros.put(__COUNTER__.getName(), __COUNTER__);
+        this.macros = macros;
         this.states = new Stack<State>();
         states.push(new State());
         this.source = null;
@@ -142,9 +154,17 @@ public class Preprocessor implements Closeable {
         this.features = EnumSet.noneOf(Feature.class);
         this.warnings = EnumSet.noneOf(Warning.class);
         this.filesystem = new JavaFileSystem();
+        this.includecache = new IncludeCache();
         this.listener = null;
     }
 
+    public Preprocessor() {
+        this(new SymbolTable());
+        macros.put(__LINE__.getName(), __LINE__);
+        macros.put(__FILE__.getName(), __FILE__);
+        macros.put(__COUNTER__.getName(), __COUNTER__);
+    }
+
     public Preprocessor(@Nonnull Source initial) {
         this();
         addInput(initial);
@@ -158,11 +178,56 @@ public class Preprocessor implements Closeable {
         this(new FileLexerSource(file));
     }
 
+    /**
+     * Returns a new Preprocessor in the state of this one.
+     *
+     * The fork has the macros, features, warnings, include paths,
+     * VirtualFileSystem, IncludeCache and listener of this
+     * Preprocessor, and the state of its includes, but no input.
+     *
+     * The macro table is not copied. Instead, the current table is
+     * frozen, and this Preprocessor and the fork each continue with
+     * a table layered over it. Forking is therefore cheap after a
+     * large prelude, and each fork may be used in its own thread,
+     * provided that the listener and the VirtualFileSystem are
+     * thread-safe.
+     *
+     * This Preprocessor must have read all of its input.
+     */
+    @Nonnull
+    public Preprocessor fork() {
+        if (source != null || !inputs.isEmpty())
+            throw new IllegalStateException("Cannot fork while reading input.");
+        SymbolTable base = macros.getParent();
+        /* Reuse the frozen table if we have not touched it since. */
+        if (base == null || macros.getCount() != 0) {
+            macros.freeze();
+            base = macros;
+            macros = new SymbolTable(base);
+        }
+
+        Preprocessor pp = new Preprocessor(new SymbolTable(base));
+        pp.counter = counter;
+        pp.onceseenpaths.addAll(onceseenpaths);
+        pp.includeguards.putAll(includeguards);
+        pp.includes.addAll(includes);
+        pp.quoteincludepath = new ArrayList<String>(quoteincludepath);
+        pp.sysincludepath = new ArrayList<String>(sysincludepath);
+        pp.frameworkspath = new ArrayList<String>(frameworkspath);
+        pp.features.addAll(features);
+        pp.warnings.addAll(warnings);
+        pp.filesystem = filesystem;
+        pp.includecache = includecache;
+        pp.listener = listener;
+        return pp;
+    }
+
     /**
      * Sets the VirtualFileSystem used by this Preprocessor.
      */
     public void setFileSystem(@Nonnull VirtualFileSystem filesystem) {
         this.filesystem = filesystem;
+        this.includecache.clear();
     }
 
     /**
@@ -173,6 +238,24 @@ public class Preprocessor implements Closeable {
         return filesystem;
     }
 
+    /**
+     * Sets the IncludeCache used by this Preprocessor.
+     *
+     * The cache may be shared with other Preprocessors which use
+     * the same VirtualFileSystem.
+     */
+    public void setIncludeCache(@Nonnull IncludeCache includecache) {
+        this.includecache = includecache;
+    }
+
+    /**
+     * Returns the IncludeCache used by this Preprocessor.
+     */
+    @Nonnull
+    public IncludeCache getIncludeCache() {
+        return includecache;
+    }
+
     /**
      * Sets the PreprocessorListener which handles events for
      * this Preprocessor.
@@ -360,6 +443,7 @@ public class Preprocessor implements Closeable {
         /* Already handled as a source error in macro(). */
         if ("defined".equals(name))
             throw new LexerException("Cannot redefine name 'defined'");
+        m.compile();
         macros.put(m.getName(), m);
     }
 
@@ -480,6 +564,23 @@ public class Preprocessor implements Closeable {
         return macros.get(name);
     }
 
+    /* Identifiers lexed by our own Sources need no hash lookup. */
+    @CheckForNull
+    private Macro getMacro(@Nonnull Token tok) {
+        Symbol symbol = tok.getSymbol();
+        if (symbol != null && symbol.getTable() == macros)
+            return symbol.getMacro();
+        return macros.get(tok.getText());
+    }
+
+    /**
+     * Returns the table in which our Sources intern identifiers.
+     */
+    @Nonnull
+    /* pp */ SymbolTable getSymbols() {
+        return macros;
+    }
+
     /**
      * Returns the list of {@link VirtualFile VirtualFiles} which have been
      * included by this Preprocessor.
@@ -492,6 +593,61 @@ public class Preprocessor implements Closeable {
         return includes;
     }
 
+    /**
+     * Writes the state of this Preprocessor to the given stream,
+     * for use as a precompiled header.
+     *
+     * The state comprises the macros other than the builtins, the
+     * files marked by #pragma once, the include guards, the list of
+     * included files and the value of __COUNTER__. It should be
+     * written after all input has been read.
+     *
+     * @throws IOException if an I/O error occurs.
+     * @see #readPrecompiledHeader(InputStream)
+     */
+    public void writePrecompiledHeader(@Nonnull OutputStream out)
+            throws IOException {
+        if (source != null)
+            throw new IllegalStateException("Cannot write a precompiled header while reading " + source);
+        PrecompiledHeader pch = new PrecompiledHeader();
+        pch.counter = counter;
+        for (Macro m : macros.values())
+            if (m.getSource() != INTERNAL)
+                pch.macros.add(m);
+        pch.onceseenpaths.addAll(onceseenpaths);
+        pch.includeguards.putAll(includeguards);
+        for (VirtualFile file : includes)
+            pch.includes.add(file.getPath());
+        pch.write(new DataOutputStream(out));
+    }
+
+    /**
+     * Reads a state written by {@link #writePrecompiledHeader(OutputStream)}
+     * into this Preprocessor.
+     *
+     * The macros are defined, replacing any of the same name. The
+     * included files are resolved against the current
+     * {@link VirtualFileSystem}. The precompiled header should be read
+     * before any input, and must have been written by a Preprocessor
+     * with the same features and include paths.
+     *
+     * @throws IOException if the stream is not a precompiled header,
+     * or if an I/O error occurs.
+     */
+    public void readPrecompiledHeader(@Nonnull InputStream in)
+            throws IOException {
+        PrecompiledHeader pch = PrecompiledHeader.read(new DataInputStream(in), macros);
+        counter = pch.counter;
+        for (Macro m : pch.macros) {
+            m.compile();
+            macros.put(m.getName(), m);
+        }
+        onceseenpaths.addAll(pch.onceseenpaths);
+        includeguards.putAll(pch.includeguards);
+        for (String path : pch.includes)
+            includes.add(filesystem.getFile(path));
+    }
+
     /* States */
     private void push_state() {
         State top = states.peek();
@@ -547,6 +703,34 @@ public class Preprocessor implements Closeable {
             listener.handleSourceChange(this.source, SourceChangeEvent.PUSH);
     }
 
+    /**
+     * Marks the given macro as being expanded, or not, to prevent
+     * its recursive expansion.
+     *
+     * This is maintained by MacroTokenSource, so that the check need
+     * not search the input stack.
+     */
+    /* pp */ void setExpanding(@Nonnull Macro m, boolean b) {
+        if (b)
+            expanding.add(m);
+        else
+            expanding.remove(m);
+    }
+
+    /**
+     * Releases the arguments of a macro invocation, from start to
+     * end of the TokenBuffer, when its MacroTokenSource is popped.
+     */
+    /* pp */ void releaseArguments(int start, int end) {
+        expansions--;
+        /* An invocation may start inside one expansion and end
+         * outside it, so this is not always the last range.
+         * Nor may the arguments of an invocation which is still
+         * being collected be released. */
+        if (arguments.size() == end && start >= collecting)
+            arguments.truncate(start);
+    }
+
     /**
      * Pops a Source from the input stack.
      *
@@ -563,6 +747,12 @@ public class Preprocessor implements Closeable {
             listener.handleSourceChange(this.source, SourceChangeEvent.POP);
         Source s = this.source;
         this.source = s.getParent();
+        IncludeGuard guard = s.getGuard();
+        if (guard != null) {
+            String macro = guard.getMacro();
+            if (macro != null)
+                includeguards.put(guard.getPath(), macro);
+        }
         /* Always a noop unless called externally. */
         s.close();
         if (listener != null && this.source != null)
@@ -597,6 +787,9 @@ public class Preprocessor implements Closeable {
 
     /* Source tokens */
     private Token source_token;
+    /* The text of a directive being copied, for DIRECTIVES_ONLY. */
+    @CheckForNull
+    private StringBuilder directive;
 
     /* XXX Make this include the NL, and make all cpp directives eat
      * their own NL. */
@@ -618,6 +811,19 @@ public class Preprocessor implements Closeable {
     private Token source_token()
             throws IOException,
             LexerException {
+        return source_token(false);
+    }
+
+    /**
+     * Returns the next token from the current source.
+     *
+     * @param scan true to skip or copy lines which are not
+     * directives, as for {@link Feature#DEPENDENCY_SCAN} and
+     * {@link Feature#DIRECTIVES_ONLY}.
+     */
+    private Token source_token(boolean scan)
+            throws IOException,
+            LexerException {
         if (source_token != null) {
             Token tok = source_token;
             source_token = null;
@@ -634,6 +840,19 @@ public class Preprocessor implements Closeable {
                     continue;
                 return t;
             }
+            if (scan) {
+                Token tok = null;
+                if (getFeature(Feature.DIRECTIVES_ONLY)) {
+                    tok = s.copygroup();
+                } else {
+                    /* Text outside a potential guard must still be seen. */
+                    IncludeGuard guard = getGuard(0);
+                    if (guard == null || !guard.isValid())
+                        tok = s.skipgroup();
+                }
+                if (tok != null)
+                    return tok;
+            }
             Token tok = s.token();
             /* XXX Refactor with skipline() */
             if (tok.getType() == EOF && s.isAutopop()) {
@@ -643,6 +862,8 @@ public class Preprocessor implements Closeable {
                     return mark;
                 continue;
             }
+            if (directive != null && tok.getType() != NL && tok.getType() != EOF)
+                directive.append(tok.getText());
             if (getFeature(Feature.DEBUG))
                 LOG.debug("Returning fresh token " + tok);
             return tok;
@@ -703,8 +924,16 @@ public class Preprocessor implements Closeable {
         Token tok;
         List<Argument> args;
 
+        /* No arguments are in use. */
+        if (expansions == 0) {
+            arguments.truncate(0);
+            collecting = 0;
+        }
+        int mark = arguments.size();
+
         // System.out.println("pp: expanding " + m);
         if (m.isFunctionLike()) {
+            collecting = mark;
             OPEN:
             for (;;) {
                 tok = source_token();
@@ -720,6 +949,7 @@ public class Preprocessor implements Closeable {
                     case '(':
                         break OPEN;
                     default:
+                        collecting = 0;
                         source_untoken(tok);
                         return false;
                 }
@@ -734,7 +964,8 @@ public class Preprocessor implements Closeable {
             if (tok.getType() != ')' || m.getArgs() > 0) {
                 args = new ArrayList<Argument>();
 
-                Argument arg = new Argument();
+                /* The start of the current arg. */
+                int start = mark;
                 int depth = 0;
                 boolean space = false;
 
@@ -743,6 +974,8 @@ public class Preprocessor implements Closeable {
                     // System.out.println("pp: arg: token is " + tok);
                     switch (tok.getType()) {
                         case EOF:
+                            collecting = 0;
+                            arguments.truncate(mark);
                             error(tok, "EOF in macro args");
                             return false;
 
@@ -751,29 +984,30 @@ public class Preprocessor implements Closeable {
                                 if (m.isVariadic()
                                         && /* We are building the last arg. */ args.size() == m.getArgs() - 1) {
                                     /* Just add the comma. */
-                                    arg.addToken(tok);
+                                    arguments.add(tok);
                                 } else {
-                                    args.add(arg);
-                                    arg = new Argument();
+                                    args.add(new Argument(arguments, start, arguments.size()));
+                                    start = arguments.size();
                                 }
                             } else {
-                                arg.addToken(tok);
+                                arguments.add(tok);
                             }
                             space = false;
                             break;
                         case ')':
                             if (depth == 0) {
-                                args.add(arg);
+                                args.add(new Argument(arguments, start, arguments.size()));
+                                collecting = 0;
                                 break ARGS;
                             } else {
                                 depth--;
-                                arg.addToken(tok);
+                                arguments.add(tok);
                             }
                             space = false;
                             break;
                         case '(':
                             depth++;
-                            arg.addToken(tok);
+                            arguments.add(tok);
                             space = false;
                             break;
 
@@ -788,9 +1022,9 @@ public class Preprocessor implements Closeable {
                         default:
                             /* Do not put space on the beginning of
                              * an argument token. */
-                            if (space && !arg.isEmpty())
-                                arg.addToken(Token.space);
-                            arg.addToken(tok);
+                            if (space && arguments.size() > start)
+                                arguments.add(Token.space);
+                            arguments.add(tok);
                             space = false;
                             break;
 
@@ -804,8 +1038,9 @@ public class Preprocessor implements Closeable {
                 if (args.size() != m.getArgs()) {
                     if (m.isVariadic()) {
                         if (args.size() == m.getArgs() - 1) {
-                            args.add(new Argument());
+                            args.add(new Argument(arguments, arguments.size(), arguments.size()));
                         } else {
+                            arguments.truncate(mark);
                             error(tok,
                                     "variadic macro " + m.getName()
                                     + " has at least " + (m.getArgs() - 1) + " parameters "
@@ -813,6 +1048,7 @@ public class Preprocessor implements Closeable {
                             return false;
                         }
                     } else {
+                        arguments.truncate(mark);
                         error(tok,
                                 "macro " + m.getName()
                                 + " has " + m.getArgs() + " parameters "
@@ -825,13 +1061,11 @@ public class Preprocessor implements Closeable {
                     }
                 }
 
-                for (Argument a : args) {
-                    a.expand(this);
-                }
-
+                /* Arguments are expanded by MacroTokenSource, if used. */
                 // System.out.println("Macro " + m + " args " + args);
             } else {
                 /* nargs == 0 and we (correctly) got () */
+                collecting = 0;
                 args = null;
             }
 
@@ -884,7 +1118,8 @@ public class Preprocessor implements Closeable {
                                 new NumericValue(10, Integer.toString(value)))}
             ), true);
         } else {
-            push_source(new MacroTokenSource(m, args), true);
+            expansions++;
+            push_source(new MacroTokenSource(m, args, mark, arguments.size()), true);
         }
 
         return true;
@@ -892,8 +1127,11 @@ public class Preprocessor implements Closeable {
 
     /**
      * Expands an argument.
+     *
+     * This is called by MacroTokenSource when the argument is first
+     * used, so an argument which is only stringified or pasted is
+     * never expanded.
      */
-    /* I'd rather this were done lazily, but doing so breaks spec. */
     @Nonnull
     /* pp */ List<Token> expand(@Nonnull List<Token> arg)
             throws IOException,
@@ -1102,7 +1340,7 @@ public class Preprocessor implements Closeable {
             LOG.debug("Defined macro " + m);
         addMacro(m);
 
-        return tok;	/* NL or EOF. */
+        return directive(tok);	/* NL or EOF. */
 
     }
 
@@ -1117,15 +1355,37 @@ public class Preprocessor implements Closeable {
             if (tok.getType() == NL || tok.getType() == EOF)
                 return tok;
         } else {
-            Macro m = getMacro(tok.getText());
+            Macro m = getMacro(tok);
             if (m != null) {
                 /* XXX error if predefined */
                 macros.remove(m.getName());
             }
+            return directive(source_skipline(true));
         }
         return source_skipline(true);
     }
 
+    /**
+     * Returns the text of the directive being copied, with the given
+     * NL or EOF, as a LITERAL token.
+     *
+     * If no directive is being copied, returns the given token.
+     */
+    @Nonnull
+    private Token directive(@Nonnull Token tok) {
+        StringBuilder text = directive;
+        if (text == null)
+            return tok;
+        if (tok.getType() == NL) {
+            text.append(tok.getText());
+        } else {
+            /* The EOF or line marker still needs processing. */
+            text.append('\n');
+            source_untoken(tok);
+        }
+        return new Token(LITERAL, tok.getLine(), 0, text.toString());
+    }
+
     /**
      * Attempts to include the given file.
      *
@@ -1141,16 +1401,28 @@ public class Preprocessor implements Closeable {
         // System.out.println("Try to include " + ((File)file).getAbsolutePath());
         if (!file.isFile())
             return false;
+        String macro = includeguards.get(file.getPath());
+        if (macro != null && macros.containsKey(macro)) {
+            /* It would expand to nothing. */
+            if (getFeature(Feature.DEBUG))
+                LOG.debug("pp: skipping " + file + " guarded by " + macro);
+            includes.add(file);
+            return true;
+        }
         if (getFeature(Feature.DEBUG))
             LOG.debug("pp: including " + file);
         includes.add(file);
-        push_source(file.getSource(), true);
+        Source source = file.getSource();
+        source.setGuard(new IncludeGuard(file.getPath(), states.size()));
+        push_source(source, true);
         return true;
     }
 
     /**
      * Attempts to include a file from an include path, by name.
      *
+     * The result of the search is recorded in the {@link IncludeCache}.
+     *
      * @param path The list of virtual directories to search for the given name.
      * @param name The name of the file to attempt to include.
      * @return true if the file was successfully included, false otherwise.
@@ -1158,11 +1430,24 @@ public class Preprocessor implements Closeable {
      */
     protected boolean include(@Nonnull Iterable<String> path, @Nonnull String name)
             throws IOException {
+        IncludeCache.Entry entry = includecache.get(path, name);
+        if (entry != null) {
+            VirtualFile file = entry.getFile();
+            if (file == null)
+                return false;
+            if (include(file))
+                return true;
+            /* Stale; search again. */
+            includecache.remove(path, name);
+        }
         for (String dir : path) {
             VirtualFile file = getFileSystem().getFile(dir, name);
-            if (include(file))
+            if (include(file)) {
+                includecache.put(path, name, file);
                 return true;
+            }
         }
+        includecache.put(path, name, null);
         return false;
     }
 
@@ -1231,7 +1516,7 @@ public class Preprocessor implements Closeable {
     private Token include(boolean next)
             throws IOException,
             LexerException {
-        LexerSource lexer = (LexerSource) source;
+        Source lexer = source;
         try {
             lexer.setInclude(true);
             Token tok = token_nonwhite();
@@ -1283,7 +1568,7 @@ public class Preprocessor implements Closeable {
 
             /* 'tok' is the 'nl' after the include. We use it after the
              * #line directive. */
-            if (getFeature(Feature.LINEMARKERS))
+            if (getFeature(Feature.LINEMARKERS) && source != lexer)
                 return line_token(1, source.getName(), " 1");
             return tok;
         } finally {
@@ -1421,10 +1706,10 @@ public class Preprocessor implements Closeable {
             Token tok = source_token();
             // System.out.println("Source token is " + tok);
             if (tok.getType() == IDENTIFIER) {
-                Macro m = getMacro(tok.getText());
+                Macro m = getMacro(tok);
                 if (m == null)
                     return tok;
-                if (source.isExpanding(m))
+                if (expanding.contains(m))
                     return tok;
                 if (macro(m, tok))
                     continue;
@@ -1478,7 +1763,7 @@ public class Preprocessor implements Closeable {
                     tok = new Token(NUMBER,
                             la.getLine(), la.getColumn(),
                             "0", new NumericValue(10, "0"));
-                } else if (macros.containsKey(la.getText())) {
+                } else if (getMacro(la) != null) {
                     // System.out.println("Found macro");
                     tok = new Token(NUMBER,
                             la.getLine(), la.getColumn(),
@@ -1766,6 +2051,63 @@ public class Preprocessor implements Closeable {
                 new String(cbuf));
     }
 
+    /* Multiple-include guards: see IncludeGuard. */
+    @CheckForNull
+    private IncludeGuard getGuard(int depth) {
+        if (source == null)
+            return null;
+        IncludeGuard guard = source.getGuard();
+        if (guard == null || states.size() != guard.getDepth() + depth)
+            return null;
+        return guard;
+    }
+
+    private void guard_token(@Nonnull Token tok) {
+        switch (tok.getType()) {
+            case WHITESPACE:
+            case CCOMMENT:
+            case CPPCOMMENT:
+            case NL:
+            case HASH:
+            case P_LINE:
+            case EOF:
+                break;
+            default:
+                IncludeGuard guard = getGuard(0);
+                if (guard != null)
+                    guard.invalidate();
+                break;
+        }
+    }
+
+    private void guard_directive(@Nonnull PreprocessorCommand ppcmd) {
+        IncludeGuard guard = getGuard(0);
+        if (guard != null) {
+            if (ppcmd != PP_IFNDEF || !guard.isOpenable())
+                guard.invalidate();
+            return;
+        }
+        guard = getGuard(1);
+        if (guard != null) {
+            switch (ppcmd) {
+                case PP_ELIF:
+                case PP_ELSE:
+                    guard.invalidate();
+                    break;
+                case PP_ENDIF:
+                    guard.close();
+                    break;
+            }
+        }
+    }
+
+    /* Called after push_state(). */
+    private void guard_ifndef(@Nonnull Token tok) {
+        IncludeGuard guard = getGuard(1);
+        if (guard != null && guard.isOpenable())
+            guard.open(tok.getText());
+    }
+
     @Nonnull
     private Token _token()
             throws IOException,
@@ -1782,6 +2124,17 @@ public class Preprocessor implements Closeable {
                     return t;
                 }
 
+                if (source_token == null && !getFeature(Feature.KEEPALLCOMMENTS)) {
+                    try {
+                        s.setActive(false);
+                        tok = s.skipgroup();
+                    } finally {
+                        s.setActive(true);
+                    }
+                    if (tok != null)
+                        return tok;
+                }
+
                 try {
                     /* XXX Tell lexer to ignore warnings. */
                     s.setActive(false);
@@ -1814,7 +2167,9 @@ public class Preprocessor implements Closeable {
                         return source_skipline(false);
                 }
             } else {
-                tok = source_token();
+                tok = source_token(getFeature(Feature.DEPENDENCY_SCAN)
+                        || getFeature(Feature.DIRECTIVES_ONLY));
+                guard_token(tok);
             }
 
             LEX:
@@ -1895,11 +2250,14 @@ public class Preprocessor implements Closeable {
                 case NUMBER:
                     return tok;
 
+                case LITERAL:	/* Copied by DIRECTIVES_ONLY. */
+                    return tok;
+
                 case IDENTIFIER:
-                    Macro m = getMacro(tok.getText());
+                    Macro m = getMacro(tok);
                     if (m == null)
                         return tok;
-                    if (source.isExpanding(m))
+                    if (expanding.contains(m))
                         return tok;
                     if (macro(m, tok))
                         break;
@@ -1941,6 +2299,7 @@ public class Preprocessor implements Closeable {
                                 + tok.getText());
                         return source_skipline(false);
                     }
+                    guard_directive(ppcmd);
 
                     PP:
                     switch (ppcmd) {
@@ -1948,15 +2307,25 @@ public class Preprocessor implements Closeable {
                         case PP_DEFINE:
                             if (!isActive())
                                 return source_skipline(false);
-                            else
+                            try {
+                                if (getFeature(Feature.DIRECTIVES_ONLY))
+                                    directive = new StringBuilder("#define");
                                 return define();
+                            } finally {
+                                directive = null;
+                            }
                         // break;
 
                         case PP_UNDEF:
                             if (!isActive())
                                 return source_skipline(false);
-                            else
+                            try {
+                                if (getFeature(Feature.DIRECTIVES_ONLY))
+                                    directive = new StringBuilder("#undef");
                                 return undef();
+                            } finally {
+                                directive = null;
+                            }
                         // break;
 
                         case PP_INCLUDE:
@@ -2055,9 +2424,8 @@ public class Preprocessor implements Closeable {
                                             + tok.getText());
                                     return source_skipline(false);
                                 } else {
-                                    String text = tok.getText();
                                     boolean exists
-                                            = macros.containsKey(text);
+                                            = getMacro(tok) != null;
                                     states.peek().setActive(exists);
                                     return source_skipline(true);
                                 }
@@ -2076,9 +2444,9 @@ public class Preprocessor implements Closeable {
                                             + tok.getText());
                                     return source_skipline(false);
                                 } else {
-                                    String text = tok.getText();
+                                    guard_ifndef(tok);
                                     boolean exists
-                                            = macros.containsKey(text);
+                                            = getMacro(tok) != null;
                                     states.peek().setActive(!exists);
                                     return source_skipline(true);
                                 }
@@ -2147,6 +2515,27 @@ public class Preprocessor implements Closeable {
         return tok;
     }
 
+    /**
+     * Preprocesses all remaining input, passing each token to the
+     * given sink.
+     *
+     * @param sink The TokenSink, or null to discard the output, as
+     *	when only the macros or the included files are wanted.
+     * @throws IOException if an I/O error occurs.
+     * @throws LexerException if a preprocessing error occurs.
+     */
+    public void run(@CheckForNull TokenSink sink)
+            throws IOException,
+            LexerException {
+        for (;;) {
+            Token tok = token();
+            if (tok.getType() == EOF)
+                break;
+            if (sink != null)
+                sink.token(tok);
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
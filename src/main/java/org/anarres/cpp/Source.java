@@ -46,6 +46,7 @@ public abstract class Source implements Iterable<Token>, Closeable {
     private PreprocessorListener listener;
     private boolean active;
     private boolean werror;
+    private IncludeGuard guard;
 
     /* LineNumberReader */
 
@@ -87,6 +88,7 @@ public abstract class Source implements Iterable<Token>, Closeable {
         this.listener = null;
         this.active = true;
         this.werror = false;
+        this.guard = null;
     }
 
     /**
@@ -173,18 +175,6 @@ public abstract class Source implements Iterable<Token>, Closeable {
         return parent.getColumn();
     }
 
-    /**
-     * Returns true if this Source is expanding the given macro.
-     *
-     * This is used to prevent macro recursion.
-     */
-    /* pp */ boolean isExpanding(@Nonnull Macro m) {
-        Source parent = getParent();
-        if (parent != null)
-            return parent.isExpanding(m);
-        return false;
-    }
-
     /**
      * Returns true if this Source should be transparently popped
      * from the input stack.
@@ -195,6 +185,16 @@ public abstract class Source implements Iterable<Token>, Closeable {
         return autopop;
     }
 
+    /* Set by the Preprocessor if this Source is an included file. */
+    /* pp */ void setGuard(@CheckForNull IncludeGuard guard) {
+        this.guard = guard;
+    }
+
+    @CheckForNull
+    /* pp */ IncludeGuard getGuard() {
+        return guard;
+    }
+
     /**
      * Returns true if this source has line numbers.
      */
@@ -212,6 +212,10 @@ public abstract class Source implements Iterable<Token>, Closeable {
         return active;
     }
 
+    /* Called by the Preprocessor while it reads an #include line. */
+    /* pp */ void setInclude(boolean b) {
+    }
+
     /**
      * Returns the next Token parsed from this input stream.
      *
@@ -271,6 +275,39 @@ public abstract class Source implements Iterable<Token>, Closeable {
         }
     }
 
+    /**
+     * Skips the remainder of an inactive conditional group, up to
+     * the next line which may hold a directive.
+     *
+     * This is an optimization, and a Source need not support it.
+     *
+     * @return an NL token for the skipped lines, or null if nothing
+     *	was skipped.
+     */
+    @CheckForNull
+    /* pp */ Token skipgroup()
+            throws IOException,
+            LexerException {
+        return null;
+    }
+
+    /**
+     * Copies the lines up to the next line which may hold a
+     * directive, as skipgroup() skips them, for
+     * {@link Feature#DIRECTIVES_ONLY}.
+     *
+     * This is an optimization, and a Source need not support it.
+     *
+     * @return a LITERAL token holding the text of the lines, an NL
+     *	token if they held no text, or null if nothing was copied.
+     */
+    @CheckForNull
+    /* pp */ Token copygroup()
+            throws IOException,
+            LexerException {
+        return null;
+    }
+
     protected void error(int line, int column, String msg)
             throws LexerException {
         if (listener != null)
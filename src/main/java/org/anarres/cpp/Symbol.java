@@ -0,0 +1,91 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * An interned identifier.
+ *
+ * There is at most one Symbol for each name in a {@link SymbolTable},
+ * and it carries the current {@link Macro} binding for that name, so
+ * that looking up a lexed identifier is a field read.
+ */
+/* pp */ final class Symbol {
+
+    private final SymbolTable table;
+    private final String name;
+    private final int hash;
+    private Macro macro;
+    /* Hash chain. */
+    /* pp */ Symbol next;
+
+    /* pp */ Symbol(@Nonnull SymbolTable table, @Nonnull String name, int hash) {
+        this.table = table;
+        this.name = name;
+        this.hash = hash;
+        this.macro = null;
+        this.next = null;
+    }
+
+    /**
+     * Returns the SymbolTable which interned this Symbol.
+     */
+    @Nonnull
+    /* pp */ SymbolTable getTable() {
+        return table;
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the hash of the name, which is the same as its String hash.
+     */
+    /* pp */ int getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the Macro currently bound to this name, or null.
+     */
+    @CheckForNull
+    public Macro getMacro() {
+        return macro;
+    }
+
+    /* pp */ void setMacro(@CheckForNull Macro macro) {
+        this.macro = macro;
+    }
+
+    /* pp */ boolean equals(@Nonnull char[] buf, int off, int len) {
+        if (name.length() != len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (name.charAt(i) != buf[off + i])
+                return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
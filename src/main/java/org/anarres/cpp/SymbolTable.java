@@ -0,0 +1,367 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The identifiers known to a Preprocessor, and the macro map.
+ *
+ * Identifiers are interned into {@link Symbol Symbols}, which carry
+ * their own macro binding. As a {@link Map}, this table contains the
+ * names of those Symbols which are currently bound to a Macro.
+ * Null values are not supported.
+ *
+ * A table may be layered over a frozen parent table. The bindings of
+ * the parent are visible until they are replaced, and a Symbol is
+ * copied from the parent only when it is interned, so that a large
+ * table may be shared cheaply between many Preprocessors.
+ */
+/* pp */ class SymbolTable extends AbstractMap<String, Macro> {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    @CheckForNull
+    private final SymbolTable parent;
+    private Symbol[] table;
+    /* The number of interned symbols. */
+    private int count;
+    /* The number of names with a Macro, including those in the parent. */
+    private int size;
+    private boolean frozen;
+
+    public SymbolTable() {
+        this(null);
+    }
+
+    /**
+     * Constructs a new SymbolTable layered over the given parent.
+     *
+     * @param parent a frozen table, or null.
+     */
+    public SymbolTable(@CheckForNull SymbolTable parent) {
+        if (parent != null && !parent.frozen)
+            throw new IllegalArgumentException("Parent table is not frozen.");
+        this.parent = parent;
+        this.table = new Symbol[INITIAL_CAPACITY];
+        this.count = 0;
+        this.size = parent == null ? 0 : parent.size;
+        this.frozen = false;
+    }
+
+    /**
+     * Prevents any further change to the bindings in this table.
+     *
+     * A frozen table may be read by many threads, but must not
+     * be used to intern new identifiers.
+     */
+    public void freeze() {
+        this.frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Returns the table over which this one is layered, or null.
+     */
+    @CheckForNull
+    public SymbolTable getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the number of Symbols interned in this table, but
+     * not in its parent.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the hash of the given characters, as String.hashCode() would.
+     */
+    /* pp */ static int hash(@Nonnull char[] buf, int off, int len) {
+        int hash = 0;
+        for (int i = 0; i < len; i++)
+            hash = 31 * hash + buf[off + i];
+        return hash;
+    }
+
+    private void rehash() {
+        Symbol[] prev = table;
+        table = new Symbol[prev.length * 2];
+        int mask = table.length - 1;
+        for (Symbol s : prev) {
+            while (s != null) {
+                Symbol next = s.next;
+                int idx = s.getHash() & mask;
+                s.next = table[idx];
+                table[idx] = s;
+                s = next;
+            }
+        }
+    }
+
+    @Nonnull
+    private Symbol add(@Nonnull String name, int hash) {
+        if (frozen)
+            throw new IllegalStateException("Symbol table is frozen.");
+        if (count >= table.length - (table.length >> 2))
+            rehash();
+        Symbol s = new Symbol(this, name, hash);
+        if (parent != null)
+            s.setMacro(parent.get(name));
+        int idx = hash & (table.length - 1);
+        s.next = table[idx];
+        table[idx] = s;
+        count++;
+        return s;
+    }
+
+    /**
+     * Returns the Symbol for the given characters, creating it if required.
+     *
+     * @param hash The hash of the characters, as computed by {@link #hash(char[], int, int)}.
+     */
+    @Nonnull
+    public Symbol intern(@Nonnull char[] buf, int off, int len, int hash) {
+        for (Symbol s = table[hash & (table.length - 1)]; s != null; s = s.next)
+            if (s.getHash() == hash && s.equals(buf, off, len))
+                return s;
+        return add(new String(buf, off, len), hash);
+    }
+
+    /**
+     * Returns the Symbol for the given name, creating it if required.
+     */
+    @Nonnull
+    public Symbol intern(@Nonnull String name) {
+        Symbol s = lookup(name);
+        if (s != null)
+            return s;
+        return add(name, name.hashCode());
+    }
+
+    /**
+     * Returns the Symbol for the given name, or null if it was never interned.
+     */
+    @CheckForNull
+    public Symbol lookup(@Nonnull String name) {
+        int hash = name.hashCode();
+        for (Symbol s = table[hash & (table.length - 1)]; s != null; s = s.next)
+            if (s.getHash() == hash && s.getName().equals(name))
+                return s;
+        return null;
+    }
+
+    private void bind(@Nonnull Symbol s, @CheckForNull Macro m) {
+        if (frozen)
+            throw new IllegalStateException("Symbol table is frozen.");
+        if (s.getMacro() == null)
+            size++;
+        if (m == null)
+            size--;
+        s.setMacro(m);
+    }
+
+    @Override
+    public Macro get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        Symbol s = lookup((String) key);
+        if (s == null)
+            return parent == null ? null : parent.get(key);
+        return s.getMacro();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Macro put(String key, Macro value) {
+        if (value == null)
+            throw new NullPointerException("Macro was null.");
+        Symbol s = intern(key);
+        Macro prev = s.getMacro();
+        bind(s, value);
+        return prev;
+    }
+
+    @Override
+    public Macro remove(Object key) {
+        Macro prev = get(key);
+        if (prev != null)
+            bind(intern((String) key), null);
+        return prev;
+    }
+
+    @Override
+    public void clear() {
+        if (frozen)
+            throw new IllegalStateException("Symbol table is frozen.");
+        /* Hide the parent. */
+        if (parent != null)
+            for (String name : parent.keySet())
+                intern(name);
+        for (Symbol s : table)
+            for (; s != null; s = s.next)
+                s.setMacro(null);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private class MacroEntry implements Map.Entry<String, Macro> {
+
+        private final String name;
+
+        public MacroEntry(@Nonnull String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getKey() {
+            return name;
+        }
+
+        @Override
+        public Macro getValue() {
+            return get(name);
+        }
+
+        @Override
+        public Macro setValue(Macro value) {
+            return put(name, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Macro value = getValue();
+            return getKey().equals(e.getKey())
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Macro value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    /* Iterates our own Symbols, then the names in the parent which we have not interned. */
+    private class EntryIterator implements Iterator<Map.Entry<String, Macro>> {
+
+        private int idx = -1;
+        private Symbol next = null;
+        @CheckForNull
+        private Iterator<String> inherited = null;
+        private String nextInherited = null;
+        private String last = null;
+
+        public EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                if (next != null)
+                    next = next.next;
+                while (next == null && ++idx < table.length)
+                    next = table[idx];
+            } while (next != null && next.getMacro() == null);
+            if (next == null && parent != null)
+                advanceInherited();
+        }
+
+        private void advanceInherited() {
+            if (inherited == null)
+                inherited = parent.keySet().iterator();
+            nextInherited = null;
+            while (inherited.hasNext()) {
+                String name = inherited.next();
+                if (lookup(name) == null) {
+                    nextInherited = name;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null || nextInherited != null;
+        }
+
+        @Override
+        public Map.Entry<String, Macro> next() {
+            if (next != null) {
+                last = next.getName();
+                advance();
+            } else if (nextInherited != null) {
+                last = nextInherited;
+                advanceInherited();
+            } else {
+                throw new NoSuchElementException();
+            }
+            return new MacroEntry(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            SymbolTable.this.remove(last);
+            last = null;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Macro>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Macro>>() {
+            @Override
+            public Iterator<Map.Entry<String, Macro>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -32,14 +32,22 @@ public final class Token {
     private int column;
     private final Object value;
     private final String text;
+    /* The interned identifier, if lexed by a Preprocessor. */
+    private final Symbol symbol;
 
-    public Token(int type, int line, int column,
-            String text, Object value) {
+    private Token(int type, int line, int column,
+            String text, Object value, Symbol symbol) {
         this.type = type;
         this.line = line;
         this.column = column;
         this.text = text;
         this.value = value;
+        this.symbol = symbol;
+    }
+
+    public Token(int type, int line, int column,
+            String text, Object value) {
+        this(type, line, column, text, value, null);
     }
 
     public Token(int type, int line, int column, String text) {
@@ -58,6 +66,10 @@ public final class Token {
         this(type, TokenType.getTokenText(type));
     }
 
+    /* pp */ Token(@Nonnull Symbol symbol) {
+        this(IDENTIFIER, -1, -1, symbol.getName(), null, symbol);
+    }
+
     /**
      * Returns the semantic type of this token.
      *
@@ -68,6 +80,19 @@ public final class Token {
         return type;
     }
 
+    /**
+     * Returns the interned Symbol for this identifier, or null.
+     */
+    @CheckForNull
+    /* pp */ Symbol getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Sets the location of this token.
+     *
+     * Shared tokens have no location, and must not be moved.
+     */
     /* pp */ void setLocation(int line, int column) {
         this.line = line;
         this.column = column;
@@ -76,7 +101,9 @@ public final class Token {
     /**
      * Returns the line at which this token started.
      *
-     * Lines are numbered from 1.
+     * Lines are numbered from 1. Tokens which were not lexed from
+     * a source, and tokens lexed with {@link Feature#SHARED_TOKENS},
+     * have no line, and return -1.
      *
      * @return the line at which this token started.
      * @see LexerSource#getLine()
@@ -89,7 +116,7 @@ public final class Token {
     /**
      * Returns the column at which this token started.
      *
-     * Columns are numbered from 0.
+     * Columns are numbered from 0, or -1 if this token has no line.
      *
      * @return the column at which this token started.
      * @see LexerSource#getColumn()
@@ -213,4 +240,30 @@ public final class Token {
 
     /** The position-less space token. */
     /* pp */ static final Token space = new Token(WHITESPACE, -1, -1, " ");
+
+    /** The position-less shared tokens with fixed text, by type. */
+    private static final Token[] SHARED = new Token[INVALID + 1];
+
+    static {
+        for (int i = 0; i < SHARED.length; i++) {
+            String text = TokenType.getTokenText(i);
+            if (text != null)
+                SHARED[i] = new Token(i, -1, -1, text);
+        }
+    }
+
+    /**
+     * Returns the shared token of the given type, or null if
+     * tokens of the given type have no fixed text.
+     */
+    @CheckForNull
+    /* pp */ static Token getShared(int type) {
+        if (type < 0 || type >= SHARED.length)
+            return null;
+        return SHARED[type];
+    }
+
+    /* pp */ static boolean isShared(@Nonnull Token tok) {
+        return getShared(tok.type) == tok;
+    }
 }
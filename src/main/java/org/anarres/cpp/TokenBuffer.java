@@ -0,0 +1,64 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.Arrays;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A growable array of tokens, holding the arguments of the macros
+ * being expanded.
+ *
+ * Each {@link Argument} is a range of this buffer, which remains
+ * valid until the buffer is truncated below its end.
+ */
+/* pp */ class TokenBuffer {
+
+    private Token[] tokens;
+    private int size;
+
+    public TokenBuffer() {
+        this.tokens = new Token[64];
+        this.size = 0;
+    }
+
+    @Nonnegative
+    public int size() {
+        return size;
+    }
+
+    public void add(@Nonnull Token tok) {
+        if (size == tokens.length) {
+            Token[] tmp = new Token[size * 2];
+            System.arraycopy(tokens, 0, tmp, 0, size);
+            tokens = tmp;
+        }
+        tokens[size++] = tok;
+    }
+
+    @Nonnull
+    public Token get(@Nonnegative int index) {
+        return tokens[index];
+    }
+
+    /** Discards the tokens from the given index onwards. */
+    public void truncate(@Nonnegative int size) {
+        Arrays.fill(tokens, size, this.size, null);
+        this.size = size;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.IOException;
+import javax.annotation.Nonnull;
+
+/**
+ * A receiver for the output of a {@link Preprocessor}.
+ *
+ * @see Preprocessor#run(TokenSink)
+ * @see WriterTokenSink
+ */
+public interface TokenSink {
+
+    /**
+     * Handles the next preprocessed token.
+     *
+     * This is never called with an EOF token.
+     */
+    public void token(@Nonnull Token tok)
+            throws IOException;
+}
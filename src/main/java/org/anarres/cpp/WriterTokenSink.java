@@ -0,0 +1,79 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link TokenSink} which writes the text of each token to a
+ * {@link Writer}.
+ *
+ * The text is copied into a reusable buffer, which is written to the
+ * Writer when it fills, so the Writer need not itself be buffered.
+ * The caller must call {@link #flush()} after the last token.
+ */
+public class WriterTokenSink implements TokenSink, Flushable {
+
+    private final Writer out;
+    private final char[] buf;
+    private int count;
+
+    public WriterTokenSink(@Nonnull Writer out, int size) {
+        this.out = out;
+        this.buf = new char[size];
+        this.count = 0;
+    }
+
+    public WriterTokenSink(@Nonnull Writer out) {
+        this(out, 8192);
+    }
+
+    private void drain()
+            throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void token(@Nonnull Token tok)
+            throws IOException {
+        String text = tok.getText();
+        int len = text.length();
+        if (len > buf.length - count) {
+            drain();
+            if (len > buf.length) {
+                out.write(text);
+                return;
+            }
+        }
+        text.getChars(0, len, buf, count);
+        count += len;
+    }
+
+    /** Writes the buffered text, and flushes the Writer. */
+    @Override
+    public void flush()
+            throws IOException {
+        drain();
+        out.flush();
+    }
+}
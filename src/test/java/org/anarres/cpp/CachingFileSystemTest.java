@@ -0,0 +1,49 @@
+package org.anarres.cpp;
+
+import com.google.common.io.Files;
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CachingFileSystemTest {
+
+    @Test
+    public void testCachingFileSystem() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File sub = new File(dir, "sys");
+            assertTrue(sub.mkdir());
+            assertTrue(new File(dir, "a.h").createNewFile());
+            assertTrue(new File(sub, "c.h").createNewFile());
+
+            CachingFileSystem fs = new CachingFileSystem(new JavaFileSystem());
+            String path = dir.getPath();
+            assertTrue(fs.getFile(path, "a.h").isFile());
+            assertFalse(fs.getFile(path, "b.h").isFile());
+            assertFalse(fs.getFile(path, "sys").isFile());
+            assertTrue(fs.getFile(path, "sys/c.h").isFile());
+            assertFalse(fs.getFile(path + "/missing", "a.h").isFile());
+            assertTrue(fs.getFile(path, "sys").getChildFile("c.h").isFile());
+
+            /* The listing is cached. */
+            assertTrue(new File(dir, "b.h").createNewFile());
+            assertFalse(fs.getFile(path, "b.h").isFile());
+            fs.invalidate(path);
+            assertTrue(fs.getFile(path, "b.h").isFile());
+
+            /* Files are still checked. */
+            assertTrue(new File(dir, "a.h").delete());
+            assertFalse(fs.getFile(path, "a.h").isFile());
+
+            CachingFileSystem chroot = new CachingFileSystem(new ChrootFileSystem(dir));
+            assertTrue(chroot.getFile("/sys", "c.h").isFile());
+            assertFalse(chroot.getFile("/sys", "d.h").isFile());
+        } finally {
+            for (File f : new File(dir, "sys").listFiles())
+                f.delete();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package org.anarres.cpp;
 
+import com.google.common.io.CharStreams;
 import java.io.BufferedReader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import javax.annotation.Nonnull;
+import org.anarres.cpp.PreprocessorListener.SourceChangeEvent;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class CppReaderTest {
 
@@ -58,4 +66,108 @@ public class CppReaderTest {
         testCppReader("#include <once.c>\n", Feature.PRAGMA_ONCE, Feature.LINEMARKERS);
     }
 
+
+    @Test
+    public void testInactive()
+            throws Exception {
+        String out = testCppReader("#if 0\n"
+                + "\"#endif\" '#endif' /* #endif */ // #endif\n"
+                + "/* a\n"
+                + "#endif */ x \\\n"
+                + "#endif\n"
+                + "  # else\n"
+                + "b\n"
+                + "#endif\n"
+                + "c\n");
+        String[] lines = out.split("\n", -1);
+        assertEquals("b", lines[6].trim());
+        assertEquals("c", lines[8].trim());
+    }
+
+    @Nonnull
+    private static String read(@Nonnull CppReader p, int len)
+            throws Exception {
+        p.getPreprocessor().setSystemIncludePath(
+                Collections.singletonList("src/test/resources")
+        );
+        p.getPreprocessor().addInput(new StringLexerSource("#include <test0.h>\n", true));
+        StringBuilder out = new StringBuilder();
+        char[] cbuf = new char[len + 2];
+        for (;;) {
+            int count = p.read(cbuf, 1, len);
+            if (count == -1)
+                break;
+            assertTrue(count > 0);
+            out.append(cbuf, 1, count);
+        }
+        assertEquals(-1, p.read());
+        return out.toString();
+    }
+
+    @Test
+    public void testRead()
+            throws Exception {
+        String expect = read(new CppReader(new Preprocessor()), 1);
+        assertTrue(expect.contains("test0end"));
+        for (int len : new int[]{3, 64, 4096})
+            for (int size : new int[]{0, 1, 100})
+                assertEquals(expect, read(new CppReader(new Preprocessor(), size), len));
+    }
+
+    @Test
+    public void testIncludeGuard()
+            throws Exception {
+        final List<String> pushed = new ArrayList<String>();
+        CppReader p = new CppReader(new StringReader("#include <guard.c>\n"));
+        p.getPreprocessor().setSystemIncludePath(
+                Collections.singletonList("src/test/resources")
+        );
+        p.getPreprocessor().setListener(new DefaultPreprocessorListener() {
+            @Override
+            public void handleSourceChange(Source source, SourceChangeEvent event) {
+                if (event == SourceChangeEvent.PUSH && source.getPath() != null)
+                    pushed.add(source.getPath());
+            }
+        });
+        String out = CharStreams.toString(p);
+        assertEquals("guarded unguarded after after", out.replaceAll("\\s+", " ").trim());
+        assertEquals(Arrays.asList(
+                "src/test/resources/guard.c",
+                "src/test/resources/guard.h",
+                "src/test/resources/unguarded.h",
+                "src/test/resources/unguarded.h"), pushed);
+        assertEquals(5, p.getPreprocessor().getIncludes().size());
+    }
+
+    @Test
+    public void testDependencyScan()
+            throws Exception {
+        CppReader p = new CppReader(new StringReader("#include <guard.c>\nFOO\n#define FOO\n"));
+        p.getPreprocessor().setSystemIncludePath(
+                Collections.singletonList("src/test/resources")
+        );
+        p.getPreprocessor().addFeature(Feature.DEPENDENCY_SCAN);
+        String out = CharStreams.toString(p);
+        /* Text outside a guard is still read, to detect the guard. */
+        assertEquals("after after", out.replaceAll("\\s+", " ").trim());
+        assertEquals(5, p.getPreprocessor().getIncludes().size());
+        assertNotNull(p.getPreprocessor().getMacro("FOO"));
+    }
+
+    @Test
+    public void testDirectivesOnly()
+            throws Exception {
+        CppReader p = new CppReader(new StringReader(
+                "#define FOO(x) x + /* c */ 1\n"
+                + "  FOO(2) \"#x\" // y\n"
+                + "#if defined(FOO)\nBAR\n#else\nBAZ\n#endif\n"
+                + "#undef FOO\nFOO"));
+        p.getPreprocessor().addFeature(Feature.DIRECTIVES_ONLY);
+        String out = CharStreams.toString(p);
+        assertEquals("#define FOO(x) x + /* c */ 1\n"
+                + "  FOO(2) \"#x\" // y\n"
+                + "\nBAR\n\n\n\n"
+                + "#undef FOO\nFOO", out);
+        assertNull(p.getPreprocessor().getMacro("FOO"));
+    }
 }
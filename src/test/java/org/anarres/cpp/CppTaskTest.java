@@ -0,0 +1,71 @@
+package org.anarres.cpp;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CppTaskTest {
+
+    private static void execute(File src, File dst) {
+        Project project = new Project();
+        project.init();
+        CppTask task = new CppTask();
+        task.setProject(project);
+        FileSet files = new FileSet();
+        files.setDir(src);
+        files.setIncludes("*.c");
+        task.addFileset(files);
+        task.setTodir(dst);
+        task.setDependencies(true);
+        task.execute();
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        dir.delete();
+    }
+
+    @Test
+    public void testDependencies() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File src = new File(dir, "src");
+            File dst = new File(dir, "dst");
+            src.mkdirs();
+            File a = new File(src, "a.c");
+            File h = new File(src, "a.h");
+            Files.write("#include \"a.h\"\nint a = A;\n", a, Charsets.UTF_8);
+            Files.write("#define A 1\n", h, Charsets.UTF_8);
+            File out = new File(dst, "a.c");
+
+            execute(src, dst);
+            assertTrue(Files.toString(out, Charsets.UTF_8).contains("int a = 1;"));
+            assertTrue(new File(dst, "a.c.d").isFile());
+
+            /* Everything is older than the output, so it is not rewritten. */
+            long now = System.currentTimeMillis();
+            Files.write("stale", out, Charsets.UTF_8);
+            a.setLastModified(now - 20000);
+            h.setLastModified(now - 20000);
+            out.setLastModified(now - 10000);
+            new File(dst, "a.c.d").setLastModified(now - 10000);
+            execute(src, dst);
+            assertEquals("stale", Files.toString(out, Charsets.UTF_8));
+
+            /* A newer header forces regeneration. */
+            Files.write("#define A 2\n", h, Charsets.UTF_8);
+            h.setLastModified(now);
+            execute(src, dst);
+            assertTrue(Files.toString(out, Charsets.UTF_8).contains("int a = 2;"));
+        } finally {
+            delete(dir);
+        }
+    }
+}
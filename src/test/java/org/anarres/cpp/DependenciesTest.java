@@ -0,0 +1,49 @@
+package org.anarres.cpp;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DependenciesTest {
+
+    @Test
+    public void testDependencies() throws Exception {
+        List<String> deps = Arrays.asList(
+                "src/a.c", "include/with space.h", "weird#$name.h",
+                "a/very/long/path/to/some/header/file/which/forces/a/line/break.h");
+        StringBuilder buf = new StringBuilder();
+        Dependencies.write(buf, "out/a.o", deps);
+        String text = buf.toString();
+        assertTrue(text, text.startsWith("out/a.o: src/a.c include/with\\ space.h weird\\#$$name.h \\\n "));
+
+        File file = File.createTempFile("jcpp", ".d");
+        try {
+            Files.write(text, file, Charsets.UTF_8);
+            assertEquals(deps, Dependencies.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDriveLetter() throws Exception {
+        List<String> deps = Arrays.asList("C:\\src\\a.c", "C:\\include\\a.h");
+        StringBuilder buf = new StringBuilder();
+        Dependencies.write(buf, "C:\\build\\a.i", deps);
+        assertEquals("C:\\build\\a.i: C:\\src\\a.c C:\\include\\a.h\n", buf.toString());
+
+        File file = File.createTempFile("jcpp", ".d");
+        try {
+            Files.write(buf.toString(), file, Charsets.UTF_8);
+            assertEquals(deps, Dependencies.read(file));
+            Files.write("C:\\build\\a.i:\\\n C:\\src\\a.c\n", file, Charsets.UTF_8);
+            assertEquals(deps.subList(0, 1), Dependencies.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.anarres.cpp;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.anarres.cpp.Token.EOF;
+import static org.junit.Assert.*;
+
+public class FileLexerSourceTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileLexerSourceTest.class);
+
+    private void testFileLexerSource(String in, Charset charset) throws Exception {
+        File file = File.createTempFile("jcpp", ".h");
+        try {
+            Files.write(in, file, charset);
+            FileLexerSource f = new FileLexerSource(file, charset);
+            StringLexerSource s = new StringLexerSource(in, true);
+            for (;;) {
+                Token expect = s.token();
+                Token actual = f.token();
+                LOG.info("Token is " + actual);
+                assertEquals(expect.toString(), actual.toString());
+                if (expect.getType() == EOF)
+                    break;
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFileLexerSource() throws Exception {
+        String ascii = "#define FOO(x) x ## _foo \\\n\t\"bar\"\nint a = FOO(1);\n";
+        String unicode = ascii + "/* caf\u00e9 */ char *s = \"\u2018quoted\u2019 \ud83d\ude00\";\n" + ascii;
+        for (Charset charset : new Charset[]{Charsets.UTF_8, Charsets.ISO_8859_1, Charsets.UTF_16}) {
+            testFileLexerSource("", charset);
+            testFileLexerSource(ascii, charset);
+            if (charset.newEncoder().canEncode(unicode))
+                testFileLexerSource(unicode, charset);
+        }
+        /* A decode-only charset is read as a stream. */
+        if (Charset.isSupported("x-JISAutoDetect")) {
+            Charset charset = Charset.forName("x-JISAutoDetect");
+            assertFalse(MappedFileReader.isAsciiCompatible(charset));
+            File file = File.createTempFile("jcpp", ".h");
+            try {
+                Files.write(ascii, file, Charsets.US_ASCII);
+                FileLexerSource f = new FileLexerSource(file, charset);
+                StringLexerSource s = new StringLexerSource(ascii, true);
+                for (;;) {
+                    Token expect = s.token();
+                    assertEquals(expect.toString(), f.token().toString());
+                    if (expect.getType() == EOF)
+                        break;
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testMappedFileReader() throws Exception {
+        String in = "ab\u00e9\ud83d\ude00c";
+        MappedFileReader r = new MappedFileReader(ByteBuffer.wrap(in.getBytes("UTF-8")), Charsets.UTF_8);
+        StringBuilder buf = new StringBuilder();
+        char[] cbuf = new char[1];
+        for (;;) {
+            int count = r.read(cbuf, 0, 1);
+            if (count == -1)
+                break;
+            assertEquals(1, count);
+            buf.append(cbuf[0]);
+        }
+        assertEquals(in, buf.toString());
+    }
+}
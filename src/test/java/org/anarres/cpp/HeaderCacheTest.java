@@ -0,0 +1,125 @@
+package org.anarres.cpp;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import org.junit.Test;
+import static org.anarres.cpp.Token.EOF;
+import static org.junit.Assert.*;
+
+public class HeaderCacheTest {
+
+    private static String lex(Source s) throws Exception {
+        StringBuilder buf = new StringBuilder();
+        for (;;) {
+            Token tok = s.token();
+            if (tok.getType() == EOF)
+                break;
+            buf.append(tok.getText());
+        }
+        return buf.toString();
+    }
+
+    private static String preprocess(File dir, VirtualFileSystem fs, Feature... features) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeatures(features);
+        pp.setFileSystem(fs);
+        pp.getQuoteIncludePath().add(dir.getPath());
+        pp.addInput(new StringLexerSource("#include \"a.h\"\n#include \"a.h\"\n", true));
+        StringBuilder buf = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token();
+            if (tok.getType() == EOF)
+                break;
+            buf.append(tok).append('\n');
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testHeaderCache() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File a = new File(dir, "a.h");
+            File b = new File(dir, "b.h");
+            Files.write("int a;\n", a, Charsets.UTF_8);
+            Files.write("int b;\n", b, Charsets.UTF_8);
+
+            HeaderCache cache = new HeaderCache(100);
+            Source s = cache.getSource(a, Charsets.UTF_8, "a.h");
+            assertEquals("a.h", s.getPath());
+            assertEquals("int a;\n", lex(s));
+            assertEquals("int a;\n", lex(cache.getSource(a, Charsets.UTF_8, "a.h")));
+            assertEquals(1, cache.size());
+
+            /* Evicts a.h. */
+            assertEquals("int b;\n", lex(cache.getSource(b, Charsets.UTF_8, "b.h")));
+            assertEquals(1, cache.size());
+
+            /* A changed file is read again. */
+            Files.write("int bb;\n", b, Charsets.UTF_8);
+            assertEquals("int bb;\n", lex(cache.getSource(b, Charsets.UTF_8, "b.h")));
+
+            Preprocessor pp = new Preprocessor();
+            pp.setFileSystem(new JavaFileSystem(new HeaderCache()));
+            pp.getSystemIncludePath().add(dir.getPath());
+            pp.addInput(new StringLexerSource("#include <a.h>\n#include <a.h>\n", true));
+            StringBuilder out = new StringBuilder();
+            for (;;) {
+                Token tok = pp.token();
+                if (tok.getType() == EOF)
+                    break;
+                out.append(tok.getText());
+            }
+            assertEquals("inta;inta;", out.toString().replaceAll("\\s+", ""));
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLexedFile() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File a = new File(dir, "a.h");
+            File b = new File(dir, "b.h");
+            Files.write("#if 0\n# include <x.h>\n\n\nint x;\n#endif\n"
+                    + "#include \"b.h\"\n\n\nchar *a = \"\\n\" ??/\n;\n", a, Charsets.UTF_8);
+            Files.write("int b;\n", b, Charsets.UTF_8);
+
+            String expect = preprocess(dir, new JavaFileSystem());
+            HeaderCache cache = new HeaderCache();
+            /* Lexes, then replays. */
+            assertEquals(expect, preprocess(dir, new JavaFileSystem(cache)));
+            assertEquals(expect, preprocess(dir, new JavaFileSystem(cache)));
+            assertTrue(expect.contains("[IDENTIFIER@1,4]:\"b\""));
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testDirectivesOnly() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File a = new File(dir, "a.h");
+            Files.write("// c\n#ifndef G1\n#define G1\n// d\nint a; // x\n// y\n#endif\n", a, Charsets.UTF_8);
+
+            String expect = preprocess(dir, new JavaFileSystem(), Feature.DIRECTIVES_ONLY);
+            HeaderCache cache = new HeaderCache();
+            assertEquals(expect, preprocess(dir, new JavaFileSystem(cache), Feature.DIRECTIVES_ONLY));
+            assertEquals(expect, preprocess(dir, new JavaFileSystem(cache), Feature.DIRECTIVES_ONLY));
+            /* The guard is detected despite the leading comment. */
+            assertEquals(1, expect.split("int a;", -1).length - 1);
+            assertFalse(expect.contains("// c"));
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.anarres.cpp;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.anarres.cpp.Token.EOF;
+import static org.junit.Assert.*;
+
+public class IncludeCacheTest {
+
+    private static class CountingFileSystem extends JavaFileSystem {
+
+        private int probes = 0;
+
+        @Override
+        public VirtualFile getFile(String dir, String name) {
+            probes++;
+            return super.getFile(dir, name);
+        }
+    }
+
+    private static int preprocess(IncludeCache cache, String in) throws Exception {
+        CountingFileSystem fs = new CountingFileSystem();
+        Preprocessor pp = new Preprocessor();
+        pp.setFileSystem(fs);
+        pp.setIncludeCache(cache);
+        pp.setListener(new DefaultPreprocessorListener());
+        pp.setSystemIncludePath(Arrays.asList("/nonexistent/a", "/nonexistent/b", "src/test/resources"));
+        pp.addInput(new StringLexerSource(in, true));
+        while (pp.token().getType() != EOF)
+            ;
+        assertEquals(2, ((DefaultPreprocessorListener) pp.getListener()).getErrors());
+        return fs.probes;
+    }
+
+    @Test
+    public void testIncludeCache() throws Exception {
+        IncludeCache cache = new IncludeCache();
+        String in = "#include <test0.h>\n"
+                + "#include <test0.h>\n"
+                + "#include <missing.h>\n"
+                + "#include <missing.h>\n";
+        /* Each name is searched for once: three probes each. */
+        assertEquals(6, preprocess(cache, in));
+        assertEquals(2, cache.size());
+        /* A shared cache is never probed again. */
+        assertEquals(0, preprocess(cache, in));
+        cache.clear();
+        assertEquals(6, preprocess(cache, in));
+    }
+}
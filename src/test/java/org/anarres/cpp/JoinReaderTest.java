@@ -1,6 +1,7 @@
 package org.anarres.cpp;
 
 import java.io.StringReader;
+import java.util.Arrays;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 
@@ -38,4 +39,29 @@ public class JoinReaderTest {
         testJoinReader("foo??/\nbar", "foobar\n", true);
     }
 
+    /* Places the interesting part of 'in' across a window boundary. */
+    private void testJoinReaderBoundary(String in, String out)
+            throws Exception {
+        for (int i = 1; i <= in.length(); i++) {
+            char[] pad = new char[JoinReader.BUFFER_SIZE - i];
+            Arrays.fill(pad, 'x');
+            String prefix = new String(pad);
+            JoinReader j = new JoinReader(new StringReader(prefix + in), true);
+            StringBuilder buf = new StringBuilder();
+            for (int c = j.read(); c != -1; c = j.read())
+                buf.append((char) c);
+            assertEquals(prefix + out, buf.toString());
+        }
+    }
+
+    @Test
+    public void testJoinReaderBoundary()
+            throws Exception {
+        testJoinReaderBoundary("a\\\nb", "ab\n");
+        testJoinReaderBoundary("a\\\r\nb", "ab\n");
+        testJoinReaderBoundary("a??(b", "a[b");
+        testJoinReaderBoundary("a??/\nb", "ab\n");
+        testJoinReaderBoundary("a???=b", "a?#b");
+    }
+
 }
@@ -142,4 +142,30 @@ public class LexerSourceTest {
     public void testUnicode()throws Exception{
         testLexerSource("foo \u2018bar\u2019 baz", true, IDENTIFIER, WHITESPACE, 8216, IDENTIFIER, 8217, WHITESPACE, IDENTIFIER);
     }
+
+    @Test
+    public void testSharedTokens() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.SHARED_TOKENS);
+        pp.addInput(new StringLexerSource("a(b, c) -> (d);\n", true));
+        StringBuilder buf = new StringBuilder();
+        Token open = null;
+        for (;;) {
+            Token tok = pp.token();
+            LOG.info("Token is " + tok);
+            if (tok.getType() == EOF)
+                break;
+            if (tok.getType() == IDENTIFIER)
+                assertEquals(1, tok.getLine());
+            if (tok.getType() == '(') {
+                assertEquals(-1, tok.getLine());
+                if (open != null)
+                    assertSame(open, tok);
+                open = tok;
+            }
+            buf.append(tok.getText());
+        }
+        assertNotNull(open);
+        assertEquals("a(b, c) -> (d);\n", buf.toString());
+    }
 }
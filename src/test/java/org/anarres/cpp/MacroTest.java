@@ -0,0 +1,77 @@
+package org.anarres.cpp;
+
+import com.google.common.io.CharStreams;
+import org.junit.Test;
+import static org.anarres.cpp.Token.*;
+import static org.junit.Assert.*;
+
+public class MacroTest {
+
+    @Test
+    public void testCompile() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addInput(new StringLexerSource("#define F(a, b) #a a ## b b\n", true));
+        while (pp.token().getType() != EOF)
+            ;
+        Macro m = pp.getMacro("F");
+        int[] code = m.getCode();
+        assertEquals(m.getTokens().size(), code.length);
+        assertEquals(m.getTokens().size(), m.getBody().length);
+        assertEquals(Macro.OP_STRING, code[0] & Macro.OP_MASK);
+        assertEquals(0, code[0] >>> Macro.OP_BITS);
+        assertEquals(Macro.OP_PASTE, code[2] & Macro.OP_MASK);
+        assertEquals(Macro.OP_ARG, code[3] & Macro.OP_MASK);
+        assertEquals(Macro.OP_ARG | (1 << Macro.OP_BITS), code[4]);
+        assertEquals(Macro.OP_TOKEN, code[5] & Macro.OP_MASK);
+
+        /* Changing the tokens recompiles the macro. */
+        m.addToken(new Token(IDENTIFIER, -1, -1, "c"));
+        assertEquals(code.length + 1, m.getCode().length);
+        pp.addInput(new StringLexerSource("F(x, y)\n", true));
+        assertEquals("\"x\" xy yc", CharStreams.toString(new CppReader(pp)).trim());
+    }
+
+    private static String preprocess(String in) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addInput(new StringLexerSource(in, true));
+        return CharStreams.toString(new CppReader(pp)).trim();
+    }
+
+    @Test
+    public void testLazyArguments() throws Exception {
+        /* An argument which is only stringified is never expanded. */
+        assertEquals("\"__COUNTER__\" 0", preprocess("#define S(x) #x\nS(__COUNTER__) __COUNTER__\n"));
+        /* A macro may be used in its own arguments. */
+        assertEquals("1 + 1", preprocess("#define f(x) x + x\nf(1)\n"));
+        assertEquals("(2 * (2 * 3))", preprocess("#define g(x) (2 * x)\ng(g(3))\n"));
+        /* But not in its own expansion. */
+        assertEquals("h(1)", preprocess("#define h(x) h(x)\nh(1)\n"));
+    }
+
+    @Test
+    public void testRecursion() throws Exception {
+        assertEquals("a b", preprocess("#define a b\n#define b a\na b\n"));
+        /* An expansion which ends is no longer recursive. */
+        assertEquals("x y y y", preprocess("#define x y\n#define y x\n#define p(q) q y\np(x) p(y)\n"));
+    }
+
+    @Test
+    public void testArguments() throws Exception {
+        assertEquals("(1 2) (3 (4 5))", preprocess("#define f(a, b) (a b)\nf(1, 2) f(3, f(4, 5))\n"));
+        /* An invocation which begins inside an expansion. */
+        assertEquals("1 1 2 2", preprocess("#define f(a) a g(a)\n#define g(a) a\n#define h f(1\nh) f(2)\n"));
+        /* An invocation which begins inside an expansion with arguments. */
+        assertEquals("0 [1]", preprocess("#define f(a) [a]\n#define h(z) z f(\nh(0) 1)\n"));
+        assertEquals("0 []", preprocess("#define f(a) [a]\n#define h(z) z f(\nh(0))\n"));
+        assertEquals("0 <x|y>", preprocess("#define g(a, b) <a|b>\n#define k(z) z g(\nk(0) x, y)\n"));
+        /* From C99 6.10.3.5. */
+        assertEquals("f(2 * (2 *(0))) + t(1);", preprocess("#define x 2\n#define f(a) f(x * (a))\n"
+                + "#define g f\n#define t(a) a\nt(t(g)(0) + t)(1);\n"));
+        /* Grows the TokenBuffer. */
+        StringBuilder buf = new StringBuilder("#define f(a) a\nf(");
+        for (int i = 0; i < 1000; i++)
+            buf.append("x ");
+        buf.append(")\n");
+        assertEquals(999 * 2 + 1, preprocess(buf.toString()).length());
+    }
+}
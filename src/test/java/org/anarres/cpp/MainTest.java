@@ -1,6 +1,11 @@
 package org.anarres.cpp;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.Arrays;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 public class MainTest {
 
@@ -8,4 +13,46 @@ public class MainTest {
     public void testMain() throws Exception {
         Main.main(new String[]{"--version"});
     }
+
+    @Test
+    public void testBatch() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File a = new File(dir, "a.c");
+            File b = new File(dir, "b.c");
+            Files.write("#define A 1\nA B\n", a, Charsets.UTF_8);
+            Files.write("A B\n", b, Charsets.UTF_8);
+            File out = new File(dir, "out");
+            Main.main(new String[]{"-DB=2", "--threads", "2", "--output-dir", out.getPath(), a.getPath(), b.getPath()});
+            /* Each translation unit has its own macros. */
+            assertTrue(Files.toString(new File(out, "a.i"), Charsets.UTF_8).contains("1 2"));
+            assertTrue(Files.toString(new File(out, "b.i"), Charsets.UTF_8).contains("A 2"));
+        } finally {
+            for (File f : Files.fileTreeTraverser().postOrderTraversal(dir))
+                f.delete();
+        }
+    }
+
+    @Test
+    public void testDependencies() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            File a = new File(dir, "a.c");
+            File h = new File(dir, "a.h");
+            Files.write("#include \"a.h\"\n", a, Charsets.UTF_8);
+            Files.write("int a;\n", h, Charsets.UTF_8);
+            File d = new File(dir, "deps.d");
+            Main.main(new String[]{"-M", "-MF", d.getPath(), a.getPath()});
+            assertEquals(Arrays.asList(a.getPath(), h.getPath()), Dependencies.read(d));
+            assertTrue(Files.toString(d, Charsets.UTF_8).startsWith("a.o: "));
+
+            File out = new File(dir, "out");
+            Main.main(new String[]{"-MD", "--output-dir", out.getPath(), a.getPath()});
+            assertEquals(Arrays.asList(a.getPath(), h.getPath()), Dependencies.read(new File(out, "a.d")));
+            assertTrue(new File(out, "a.i").isFile());
+        } finally {
+            for (File f : Files.fileTreeTraverser().postOrderTraversal(dir))
+                f.delete();
+        }
+    }
 }
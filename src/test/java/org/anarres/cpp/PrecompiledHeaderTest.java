@@ -0,0 +1,58 @@
+package org.anarres.cpp;
+
+import com.google.common.io.CharStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PrecompiledHeaderTest {
+
+    private static Preprocessor newPreprocessor() {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.PRAGMA_ONCE);
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        return pp;
+    }
+
+    private static String preprocess(Preprocessor pp, String in) throws IOException {
+        pp.addInput(new StringLexerSource(in, true));
+        return CharStreams.toString(new CppReader(pp)).replaceAll("\\s+", " ").trim();
+    }
+
+    @Test
+    public void testPrecompiledHeader() throws Exception {
+        Preprocessor prelude = newPreprocessor();
+        assertEquals("guarded foo 0", preprocess(prelude,
+                "#include <guard.h>\n"
+                + "#include <once.h>\n"
+                + "#define NUM 0x10UL\n"
+                + "#define CHR 'a'\n"
+                + "#define STR(x) #x\n"
+                + "#define CAT(a, b) a ## b\n"
+                + "#define VA(...) __VA_ARGS__\n"
+                + "__COUNTER__\n"));
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        prelude.writePrecompiledHeader(buf);
+
+        Preprocessor pp = newPreprocessor();
+        pp.readPrecompiledHeader(new ByteArrayInputStream(buf.toByteArray()));
+        assertEquals(prelude.getIncludes().size(), pp.getIncludes().size());
+        assertEquals("NUM", pp.getMacro("NUM").getName());
+        assertEquals("16 97 \"y\" xy 1, 2 1",
+                preprocess(pp,
+                        "#include <guard.h>\n"
+                        + "#include <once.h>\n"
+                        + "#if NUM == 16 && CHR == 97\n16 97\n#endif\n"
+                        + "STR(y) CAT(x, y) VA(1, 2) __COUNTER__\n"));
+        /* Neither header was read again. */
+        assertEquals(prelude.getIncludes().size() + 2, pp.getIncludes().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadHeader() throws Exception {
+        newPreprocessor().readPrecompiledHeader(new ByteArrayInputStream(new byte[]{1, 2, 3, 4}));
+    }
+}
@@ -0,0 +1,146 @@
+package org.anarres.cpp;
+
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Test;
+import static org.anarres.cpp.Token.*;
+import static org.junit.Assert.*;
+
+public class SymbolTableTest {
+
+    @Test
+    public void testIntern() throws Exception {
+        SymbolTable table = new SymbolTable();
+        char[] buf = "xfoox".toCharArray();
+        Symbol s = table.intern(buf, 1, 3, SymbolTable.hash(buf, 1, 3));
+        assertEquals("foo", s.getName());
+        assertEquals("foo".hashCode(), s.getHash());
+        assertSame(s, table.intern("foo"));
+        assertSame(s, table.lookup("foo"));
+        assertNull(table.lookup("bar"));
+
+        /* Force a few rehashes. */
+        for (int i = 0; i < 10000; i++)
+            table.intern("sym" + i);
+        for (int i = 0; i < 10000; i++)
+            assertEquals("sym" + i, table.lookup("sym" + i).getName());
+        assertSame(s, table.lookup("foo"));
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testMap() throws Exception {
+        SymbolTable table = new SymbolTable();
+        Macro a = new Macro("a");
+        Macro b = new Macro("b");
+        assertNull(table.put("a", a));
+        assertNull(table.put("b", b));
+        table.intern("c");
+        assertEquals(2, table.size());
+        assertSame(a, table.get("a"));
+        assertSame(a, table.lookup("a").getMacro());
+        assertFalse(table.containsKey("c"));
+
+        assertSame(a, table.remove("a"));
+        assertNull(table.lookup("a").getMacro());
+        assertEquals(1, table.size());
+
+        Iterator<Map.Entry<String, Macro>> it = table.entrySet().iterator();
+        assertTrue(it.hasNext());
+        assertEquals("b", it.next().getKey());
+        assertFalse(it.hasNext());
+        it.remove();
+        assertTrue(table.isEmpty());
+        assertNull(table.get("b"));
+    }
+
+    @Test
+    public void testPreprocessor() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addMacro("FOO", "1");
+        pp.getMacros().remove("BAR");
+        pp.addInput(new StringLexerSource("FOO BAR", true));
+        Token tok = pp.token();
+        assertEquals(NUMBER, tok.getType());
+        pp.getMacros().remove("FOO");
+        pp.addInput(new StringLexerSource("FOO", true));
+        for (;;) {
+            tok = pp.token();
+            if (tok.getType() == IDENTIFIER)
+                break;
+        }
+        assertEquals("BAR", tok.getText());
+        assertSame(pp.getSymbols(), tok.getSymbol().getTable());
+        tok = pp.token();
+        assertEquals(IDENTIFIER, tok.getType());
+        assertEquals("FOO", tok.getText());
+    }
+
+    @Test
+    public void testLayer() throws Exception {
+        SymbolTable base = new SymbolTable();
+        Macro a = new Macro("a");
+        Macro b = new Macro("b");
+        base.put("a", a);
+        base.put("b", b);
+        base.freeze();
+        try {
+            base.put("c", a);
+            fail("Put into a frozen table.");
+        } catch (IllegalStateException e) {
+        }
+
+        SymbolTable table = new SymbolTable(base);
+        assertEquals(2, table.size());
+        assertSame(a, table.get("a"));
+        assertEquals(0, table.getCount());
+        assertSame(a, table.intern("a").getMacro());
+
+        Macro c = new Macro("c");
+        table.put("c", c);
+        assertSame(b, table.remove("b"));
+        assertNull(table.get("b"));
+        assertEquals(2, table.size());
+        assertEquals(2, table.entrySet().size());
+        assertEquals(2, table.keySet().size());
+        assertTrue(table.keySet().contains("a"));
+        assertTrue(table.keySet().contains("c"));
+
+        /* The parent is unchanged. */
+        assertSame(b, base.get("b"));
+        assertNull(base.get("c"));
+        assertEquals(2, base.size());
+
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertFalse(table.entrySet().iterator().hasNext());
+        assertSame(a, base.get("a"));
+    }
+
+    @Test
+    public void testFork() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.DIGRAPHS);
+        pp.addMacro("FOO", "1");
+        pp.getSystemIncludePath().add("/usr/include");
+
+        Preprocessor child = pp.fork();
+        assertTrue(child.getFeature(Feature.DIGRAPHS));
+        assertEquals(pp.getSystemIncludePath(), child.getSystemIncludePath());
+        assertNotNull(child.getMacro("__LINE__"));
+        child.addMacro("BAR", "2");
+        child.getMacros().remove("FOO");
+        child.addInput(new StringLexerSource("FOO BAR", true));
+        assertEquals(IDENTIFIER, child.token().getType());
+        assertEquals(WHITESPACE, child.token().getType());
+        assertEquals(NUMBER, child.token().getType());
+
+        /* The parent is unaffected, and may fork again. */
+        assertNull(pp.getMacro("BAR"));
+        pp.addMacro("BAZ", "3");
+        Preprocessor other = pp.fork();
+        assertNotNull(other.getMacro("FOO"));
+        assertNotNull(other.getMacro("BAZ"));
+        assertNull(child.getMacro("BAZ"));
+    }
+}
@@ -0,0 +1,77 @@
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.anarres.cpp.Token.*;
+import static org.junit.Assert.*;
+
+public class TokenPastingTest {
+
+    private static final String[] OPERANDS = {
+        "a", "_b", "x1", "1", "0x1F", "1.5", "10u", "\"s\"", "'c'",
+        "+", "-", "*", "/", "%", "<", ">", "=", "!", "&", "|", "^", "~",
+        ".", ";", ":", "?", "[", "]", "{", "}", "@", "`",
+        "++", "--", "->", "<<", ">>", "<=", ">=", "==", "!=", "&&", "||",
+        "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<=", ">>=",
+        "...", ".."
+    };
+
+    private static List<String> relex(String text) throws Exception {
+        List<String> out = new ArrayList<String>();
+        StringLexerSource s = new StringLexerSource(text);
+        for (;;) {
+            Token tok = s.token();
+            if (tok.getType() == EOF)
+                break;
+            out.add(tok.toString());
+        }
+        return out;
+    }
+
+    /* The direct paste must give the same tokens as the lexer. */
+    @Test
+    public void testPaste() throws Exception {
+        StringBuilder in = new StringBuilder();
+        List<List<String>> expect = new ArrayList<List<String>>();
+        for (String left : OPERANDS) {
+            for (String right : OPERANDS) {
+                /* The Preprocessor does not accept these. */
+                List<String> tokens = relex(left + right);
+                if (tokens.toString().matches(".*(LAND_EQ|LOR_EQ|\\[#@).*"))
+                    continue;
+                in.append("#define Q").append(expect.size())
+                        .append(" ").append(left).append(" ## ").append(right).append("\n");
+                in.append("Q").append(expect.size()).append("\n");
+                expect.add(tokens);
+            }
+        }
+        /* Empty and variadic operands. */
+        in.append("#define R(x, ...) x ## __VA_ARGS__ ## x\n");
+        in.append("R(a)\nR(,b)\nR(<,)\n");
+        expect.add(relex("aa"));
+        expect.add(relex("b"));
+        expect.add(relex("<<"));
+
+        Preprocessor pp = new Preprocessor();
+        pp.addInput(new StringLexerSource(in.toString(), true));
+        List<String> line = new ArrayList<String>();
+        int index = 0;
+        for (;;) {
+            Token tok = pp.token();
+            if (tok.getType() == EOF)
+                break;
+            if (tok.getType() == NL) {
+                if (!line.isEmpty()) {
+                    assertEquals("Line " + index, expect.get(index), line);
+                    index++;
+                    line.clear();
+                }
+                continue;
+            }
+            if (tok.getType() != P_LINE)
+                line.add(tok.toString());
+        }
+        assertEquals(expect.size(), index);
+    }
+}
@@ -0,0 +1,37 @@
+package org.anarres.cpp;
+
+import com.google.common.io.CharStreams;
+import java.io.StringWriter;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WriterTokenSinkTest {
+
+    private static Preprocessor newPreprocessor() {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.LINEMARKERS);
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        pp.addInput(new StringLexerSource("#include <test0.h>\n", true));
+        return pp;
+    }
+
+    @Test
+    public void testWriterTokenSink() throws Exception {
+        String expect = CharStreams.toString(new CppReader(newPreprocessor()));
+        assertTrue(expect.contains("#line"));
+
+        for (int size : new int[]{1, 4, 8192}) {
+            StringWriter out = new StringWriter();
+            WriterTokenSink sink = new WriterTokenSink(out, size);
+            newPreprocessor().run(sink);
+            sink.flush();
+            assertEquals(expect, out.toString());
+        }
+
+        /* Only the state is wanted. */
+        Preprocessor pp = newPreprocessor();
+        pp.run(null);
+        assertEquals(Token.EOF, pp.token().getType());
+    }
+}